@@ -0,0 +1,64 @@
+package com.vaultguard.benchmarks;
+
+import com.vaultguard.model.EncryptedData;
+import com.vaultguard.services.EncryptionService;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting and decrypting a single value, from one byte up to the
+ * 1024-character key value limit and beyond it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptionBenchmark {
+
+    @Param({"1", "64", "1024", "16384"})
+    public int valueLength;
+
+    private EncryptionService encryptionService;
+    private SecretKey key;
+    private String value;
+    private EncryptedData encrypted;
+    private ByteBuffer plaintext;
+    private ByteBuffer out;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        encryptionService = new EncryptionService();
+        key = encryptionService.generateDataKey();
+        value = "x".repeat(valueLength);
+        encrypted = encryptionService.encrypt(value, key);
+        plaintext = ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+        out = ByteBuffer.allocate(valueLength);
+    }
+
+    @Benchmark
+    public EncryptedData encrypt() throws GeneralSecurityException {
+        return encryptionService.encrypt(value, key);
+    }
+
+    @Benchmark
+    public String decrypt() throws GeneralSecurityException {
+        return encryptionService.decrypt(encrypted, key);
+    }
+
+    @Benchmark
+    public EncryptedData encryptBuffer() throws GeneralSecurityException {
+        return encryptionService.encrypt(plaintext.rewind(), key);
+    }
+
+    @Benchmark
+    public int decryptIntoBuffer() throws GeneralSecurityException {
+        return encryptionService.decrypt(encrypted, key, out.clear());
+    }
+}
@@ -0,0 +1,44 @@
+package com.vaultguard.benchmarks;
+
+import com.vaultguard.services.EncryptionService;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of deriving a vault key from the master password, which dominates
+ * login, register and changePassword. The provider variant is the JCE
+ * reference the built-in engine is measured against.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyDerivationBenchmark {
+
+    @Param({"100000", "600000"})
+    public int iterations;
+
+    private EncryptionService encryptionService;
+    private final byte[] salt = new byte[16];
+
+    @Setup
+    public void setup() {
+        encryptionService = new EncryptionService();
+        encryptionService.setIterations(iterations);
+    }
+
+    @Benchmark
+    public SecretKey deriveKey() throws GeneralSecurityException {
+        return encryptionService.deriveKey("CorrectHorse123", salt);
+    }
+
+    @Benchmark
+    public SecretKey deriveKeyWithProvider() throws GeneralSecurityException {
+        return encryptionService.deriveKeyWithProvider("CorrectHorse123", salt);
+    }
+}
@@ -0,0 +1,404 @@
+package com.vaultguard.benchmarks;
+
+import com.google.gson.GsonBuilder;
+import com.vaultguard.controller.PasswordManager;
+import com.vaultguard.services.StorageService;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Drives a mixed workload through PasswordManager from concurrent clients
+ * against a temporary storage directory, and reports throughput and
+ * latency percentiles per operation. Unlike the JMH benchmarks this
+ * measures whole operations, load-modify-save included, under contention.
+ *
+ * Each client has its own PasswordManager logged in as one of the
+ * synthetic users. By default every client gets its own user; with fewer
+ * users than clients, clients share vaults the way separate processes
+ * would.
+ *
+ * Usage: java -cp target/benchmarks.jar com.vaultguard.benchmarks.LoadHarness [options]
+ *   --clients N          concurrent clients (default 4)
+ *   --users N            synthetic users (default one per client)
+ *   --entries A,B,...    vault sizes, given to users in turn (default 10,1000,100000)
+ *   --warmup S           seconds of unmeasured load first (default 5)
+ *   --duration S         seconds of measured load (default 30)
+ *   --mix op=W,...       operation weights (default get=50,list=15,add=10,edit=10,delete=10,login=4,register=1)
+ *   --format F           BINARY or JSON (default BINARY)
+ *   --log-structured     append changes to a log instead of rewriting vaults
+ *   --group-commit       share fsyncs between concurrent saves
+ *   --dir PATH           storage directory (default a new temporary one, deleted afterwards)
+ *   --json FILE          also write the report as JSON
+ */
+public final class LoadHarness {
+
+    enum Operation { REGISTER, LOGIN, LIST, GET, ADD, EDIT, DELETE }
+
+    private static final String PASSWORD = "LoadHarness123";
+    private static final String VALUE = "correct horse battery staple";
+
+    private int clients = 4;
+    private int users = -1;
+    private int[] entries = {10, 1000, 100_000};
+    private int warmupSeconds = 5;
+    private int durationSeconds = 30;
+    private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    private StorageService.Format format = StorageService.Format.BINARY;
+    private boolean logStructured = false;
+    private boolean groupCommit = false;
+    private Path dir = null;
+    private Path jsonReport = null;
+
+    private LoadHarness() {
+        mix.put(Operation.GET, 50);
+        mix.put(Operation.LIST, 15);
+        mix.put(Operation.ADD, 10);
+        mix.put(Operation.EDIT, 10);
+        mix.put(Operation.DELETE, 10);
+        mix.put(Operation.LOGIN, 4);
+        mix.put(Operation.REGISTER, 1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        harness.parse(args);
+        harness.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--users":
+                    users = Integer.parseInt(args[++i]);
+                    break;
+                case "--entries":
+                    entries = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--mix":
+                    mix.clear();
+                    for (String weight : args[++i].split(",")) {
+                        String[] parts = weight.split("=");
+                        mix.put(Operation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(parts[1].trim()));
+                    }
+                    break;
+                case "--format":
+                    format = StorageService.Format.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--log-structured":
+                    logStructured = true;
+                    break;
+                case "--group-commit":
+                    groupCommit = true;
+                    break;
+                case "--dir":
+                    dir = Paths.get(args[++i]);
+                    break;
+                case "--json":
+                    jsonReport = Paths.get(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (users < 0) {
+            users = clients;
+        }
+        if (clients < 1 || users < 1 || entries.length == 0) {
+            throw new IllegalArgumentException("Need at least one client, user and vault size");
+        }
+    }
+
+    private StorageService newStorageService(Path storageDir) {
+        StorageService storageService = new StorageService(storageDir.toString());
+        storageService.setFormat(format);
+        storageService.setLogStructured(logStructured);
+        storageService.setGroupCommit(groupCommit);
+        return storageService;
+    }
+
+    private void run() throws Exception {
+        boolean temporary = dir == null;
+        Path storageDir = temporary ? Files.createTempDirectory("vaultguard-load") : Files.createDirectories(dir);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(clients, users));
+        try {
+            System.out.printf("Creating %d users in %s%n", users, storageDir);
+            List<Future<?>> setups = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                int user = i;
+                setups.add(executor.submit(() -> createUser(storageDir, user)));
+            }
+            for (Future<?> setup : setups) {
+                setup.get();
+            }
+
+            System.out.printf("Running %d clients: %ds warmup, %ds measured%n", clients, warmupSeconds, durationSeconds);
+            long start = System.nanoTime();
+            long measureFrom = start + warmupSeconds * 1_000_000_000L;
+            long end = measureFrom + durationSeconds * 1_000_000_000L;
+            List<Future<Recorder>> results = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                Client client = new Client(i, storageDir, measureFrom, end);
+                results.add(executor.submit(client::run));
+            }
+            Recorder total = new Recorder();
+            for (Future<Recorder> result : results) {
+                total.merge(result.get());
+            }
+            report(total);
+        } finally {
+            executor.shutdown();
+            if (temporary) {
+                deleteRecursively(storageDir);
+            }
+        }
+    }
+
+    private Void createUser(Path storageDir, int user) throws Exception {
+        PasswordManager pm = new PasswordManager(newStorageService(storageDir), null, null, null);
+        String username = "user" + user;
+        if (!pm.register(username, PASSWORD)) {
+            throw new IllegalStateException("Could not register " + username);
+        }
+        int size = entries[user % entries.length];
+        Map<String, String> batch = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            batch.put("key" + i, VALUE);
+            if (batch.size() == 10_000 || i == size - 1) {
+                pm.addKeys(batch);
+                batch.clear();
+            }
+        }
+        pm.logout();
+        return null;
+    }
+
+    /**
+     * One simulated user session issuing operations back to back.
+     */
+    private class Client {
+        private final int id;
+        private final Path storageDir;
+        private final long measureFrom;
+        private final long end;
+        private final Random random;
+        private final String username;
+        private final PasswordManager pm;
+        private final List<String> names = new ArrayList<>();
+        private final List<String> added = new ArrayList<>();
+        private final Operation[] choices;
+        private int counter = 0;
+
+        Client(int id, Path storageDir, long measureFrom, long end) {
+            this.id = id;
+            this.storageDir = storageDir;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.random = new Random(id);
+            this.username = "user" + (id % users);
+            this.pm = new PasswordManager(newStorageService(storageDir), null, null, null);
+
+            List<Operation> weighted = new ArrayList<>();
+            for (Map.Entry<Operation, Integer> weight : mix.entrySet()) {
+                for (int i = 0; i < weight.getValue(); i++) {
+                    weighted.add(weight.getKey());
+                }
+            }
+            this.choices = weighted.toArray(new Operation[0]);
+        }
+
+        Recorder run() throws Exception {
+            if (!pm.login(username, PASSWORD)) {
+                throw new IllegalStateException("Could not log in as " + username);
+            }
+            names.addAll(pm.getVaultKeyNames());
+
+            Recorder recorder = new Recorder();
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                Operation operation = choices[random.nextInt(choices.length)];
+                if (operation == Operation.DELETE && added.isEmpty()) {
+                    operation = Operation.ADD;
+                }
+                boolean ok;
+                long started = System.nanoTime();
+                try {
+                    ok = perform(operation);
+                } catch (Exception e) {
+                    ok = false;
+                }
+                long elapsed = System.nanoTime() - started;
+                if (now >= measureFrom) {
+                    recorder.record(operation, elapsed, ok);
+                }
+            }
+            pm.logout();
+            return recorder;
+        }
+
+        private boolean perform(Operation operation) throws Exception {
+            switch (operation) {
+                case REGISTER: {
+                    PasswordManager registrar = new PasswordManager(newStorageService(storageDir), null, null, null);
+                    boolean ok = registrar.register("client" + id + "r" + counter++, PASSWORD);
+                    registrar.logout();
+                    return ok;
+                }
+                case LOGIN:
+                    pm.logout();
+                    return pm.login(username, PASSWORD);
+                case LIST:
+                    return pm.getVaultKeyNames() != null;
+                case GET:
+                    return names.isEmpty() || pm.getKeyValue(randomName()) != null;
+                case ADD: {
+                    String name = "client" + id + "k" + counter++;
+                    boolean ok = pm.addKey(name, VALUE);
+                    if (ok) {
+                        names.add(name);
+                        added.add(name);
+                    }
+                    return ok;
+                }
+                case EDIT:
+                    return names.isEmpty() || pm.editKey(randomName(), VALUE + counter++);
+                case DELETE: {
+                    //Only delete what this client added, so vault sizes hold steady
+                    String name = added.remove(added.size() - 1);
+                    names.remove(name);
+                    return pm.deleteKey(name);
+                }
+                default:
+                    throw new IllegalStateException(operation.name());
+            }
+        }
+
+        private String randomName() {
+            return names.get(random.nextInt(names.size()));
+        }
+    }
+
+    /**
+     * Latencies of each operation, in nanoseconds.
+     */
+    private static class Recorder {
+        private final Map<Operation, long[]> latencies = new EnumMap<>(Operation.class);
+        private final Map<Operation, Integer> counts = new EnumMap<>(Operation.class);
+        private final Map<Operation, Integer> errors = new EnumMap<>(Operation.class);
+
+        void record(Operation operation, long nanos, boolean ok) {
+            int count = counts.getOrDefault(operation, 0);
+            long[] values = latencies.computeIfAbsent(operation, op -> new long[1024]);
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                latencies.put(operation, values);
+            }
+            values[count] = nanos;
+            counts.put(operation, count + 1);
+            if (!ok) {
+                errors.merge(operation, 1, Integer::sum);
+            }
+        }
+
+        void merge(Recorder other) {
+            for (Operation operation : other.counts.keySet()) {
+                long[] values = other.latencies.get(operation);
+                for (int i = 0; i < other.counts.get(operation); i++) {
+                    record(operation, values[i], true);
+                }
+                errors.merge(operation, other.errors.getOrDefault(operation, 0), Integer::sum);
+            }
+        }
+
+        long[] sorted(Operation operation) {
+            long[] values = Arrays.copyOf(latencies.get(operation), counts.get(operation));
+            Arrays.sort(values);
+            return values;
+        }
+    }
+
+    private static double percentileMillis(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1_000_000.0;
+    }
+
+    private void report(Recorder recorder) throws IOException {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        long totalCount = 0;
+        System.out.printf("%n%-10s %9s %10s %9s %9s %9s %9s %7s%n",
+            "operation", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors");
+        for (Operation operation : Operation.values()) {
+            if (!recorder.counts.containsKey(operation)) continue;
+            long[] sorted = recorder.sorted(operation);
+            double throughput = sorted.length / (double) durationSeconds;
+            int errors = recorder.errors.getOrDefault(operation, 0);
+            totalCount += sorted.length;
+            System.out.printf("%-10s %9d %10.1f %9.3f %9.3f %9.3f %9.3f %7d%n",
+                operation.name().toLowerCase(Locale.ROOT), sorted.length, throughput,
+                percentileMillis(sorted, 0.50), percentileMillis(sorted, 0.99), percentileMillis(sorted, 0.999),
+                sorted[sorted.length - 1] / 1_000_000.0, errors);
+
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("operation", operation.name().toLowerCase(Locale.ROOT));
+            row.put("count", sorted.length);
+            row.put("opsPerSecond", throughput);
+            row.put("p50Millis", percentileMillis(sorted, 0.50));
+            row.put("p99Millis", percentileMillis(sorted, 0.99));
+            row.put("p999Millis", percentileMillis(sorted, 0.999));
+            row.put("maxMillis", sorted[sorted.length - 1] / 1_000_000.0);
+            row.put("errors", errors);
+            rows.add(row);
+        }
+        System.out.printf("%-10s %9d %10.1f%n", "total", totalCount, totalCount / (double) durationSeconds);
+
+        if (jsonReport != null) {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("clients", clients);
+            report.put("users", users);
+            report.put("entries", entries);
+            report.put("durationSeconds", durationSeconds);
+            report.put("format", format.name());
+            report.put("logStructured", logStructured);
+            report.put("groupCommit", groupCommit);
+            report.put("operations", rows);
+            try (Writer writer = Files.newBufferedWriter(jsonReport)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(report, writer);
+            }
+            System.out.println("Report written to " + jsonReport);
+        }
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
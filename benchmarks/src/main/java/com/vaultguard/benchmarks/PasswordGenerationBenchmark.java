@@ -0,0 +1,25 @@
+package com.vaultguard.benchmarks;
+
+import com.vaultguard.services.PasswordGenerationService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordGenerationBenchmark {
+
+    @Param({"16", "64"})
+    public int length;
+
+    private final PasswordGenerationService passwordGenerationService = new PasswordGenerationService();
+
+    @Benchmark
+    public String generatePassword() {
+        return passwordGenerationService.generatePassword(length);
+    }
+}
@@ -0,0 +1,101 @@
+package com.vaultguard.benchmarks;
+
+import com.vaultguard.model.EncryptedData;
+import com.vaultguard.model.VaultEntry;
+import com.vaultguard.model.VaultFile;
+import com.vaultguard.model.VaultHeader;
+import com.vaultguard.services.MappedVault;
+import com.vaultguard.services.StorageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Loading and saving whole vaults of each format, from a handful of
+ * entries to 100,000. Entries have the sizes real ones do: a 12-byte IV
+ * and a short password's ciphertext.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    private static final String USERNAME = "benchmark";
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    @Param({"BINARY", "JSON"})
+    public StorageService.Format format;
+
+    private Path storageDir;
+    private StorageService storageService;
+    private VaultFile vault;
+
+    @Setup
+    public void setup() throws IOException {
+        storageDir = Files.createTempDirectory("vaultguard-bench");
+        storageService = new StorageService(storageDir.toString());
+        storageService.setFormat(format);
+        vault = syntheticVault(entries);
+        storageService.saveVault(USERNAME, vault);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(storageDir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    static VaultFile syntheticVault(int entries) {
+        Random random = new Random(entries);
+        List<VaultEntry> keys = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            byte[] iv = new byte[12];
+            byte[] ciphertext = new byte[16 + 8 + random.nextInt(24)];
+            random.nextBytes(iv);
+            random.nextBytes(ciphertext);
+            keys.add(new VaultEntry("key" + i, new EncryptedData(iv, ciphertext)));
+        }
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        VaultFile vaultFile = new VaultFile(Base64.getEncoder().encodeToString(salt), keys);
+        vaultFile.wrappedKey = new EncryptedData(new byte[12], new byte[48]);
+        return vaultFile;
+    }
+
+    @Benchmark
+    public VaultFile loadVault() throws IOException {
+        return storageService.loadVault(USERNAME);
+    }
+
+    @Benchmark
+    public void saveVault() throws IOException {
+        storageService.saveVault(USERNAME, vault);
+    }
+
+    @Benchmark
+    public MappedVault mapVault() throws IOException {
+        return storageService.mapVault(USERNAME);
+    }
+
+    @Benchmark
+    public VaultHeader readVaultHeader() throws IOException {
+        return storageService.readVaultHeader(USERNAME);
+    }
+}
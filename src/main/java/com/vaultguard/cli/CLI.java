@@ -1,21 +1,34 @@
 package com.vaultguard.cli;
 
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 
 import com.vaultguard.controller.PasswordManager;
+import com.vaultguard.server.VaultServer;
+import com.vaultguard.services.EncryptionService;
 
 import java.awt.Toolkit;
 import java.awt.datatransfer.StringSelection;
 
 public class CLI {
+    //How long key derivation should take on this machine at login
+    private static final long TARGET_LOGIN_MILLIS = 250;
+
     private PasswordManager passwordManager;
     private Scanner scanner;
     private boolean isLoggedIn = false;
     private String currentUser = "";
 
     public CLI() {
-        passwordManager = new PasswordManager("vaults"); 
+        EncryptionService encryptionService = new EncryptionService();
+        try {
+            encryptionService.setIterations(encryptionService.calibrateIterations(TARGET_LOGIN_MILLIS));
+        } catch (GeneralSecurityException e) {
+            //Keep the default iteration count
+        }
+        passwordManager = new PasswordManager("vaults", null, encryptionService, null);
         scanner = new Scanner(System.in);
     }
 
@@ -269,7 +282,12 @@ private void handleRegister() {
         System.out.println("\nAvailable commands: view, add, edit, copy, delete, logout, help, exit");
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        //"serve [options]" runs the local JSON API instead of the prompt
+        if (args.length > 0 && args[0].equals("serve")) {
+            VaultServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         CLI cli = new CLI();
         cli.start();
     }
@@ -0,0 +1,313 @@
+package com.vaultguard.controller;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaultguard.model.VaultHeader;
+
+/**
+ * CompletableFuture versions of the PasswordManager operations, for callers
+ * such as servers that must not tie up their own threads.
+ *
+ * Work is split by what it waits on. Key derivation goes through a
+ * KdfScheduler, which by default runs a derivation per core and queues the
+ * rest fairly by source. File I/O, and the vault operations built on it,
+ * runs on a separate pool. A login is staged across the two: its header is
+ * read on the I/O pool, the key derived by the scheduler, and the vault
+ * unlocked back on the I/O pool, and a vault that needs upgrading has its
+ * new key derived by the scheduler as well. Lookups therefore never queue
+ * behind logins, however many are waiting for a core.
+ *
+ * Operations that fail complete the future exceptionally with the
+ * exception the PasswordManager method would have thrown. Those the
+ * scheduler turns away fail with KdfRejectedException.
+ */
+public class AsyncPasswordManager implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(AsyncPasswordManager.class.getName());
+
+    private final PasswordManager passwordManager;
+    private final KdfScheduler kdfScheduler;
+    private final ExecutorService ioExecutor;
+
+    /**
+     * Creates an AsyncPasswordManager running a derivation per core and
+     * with four I/O threads per core (at least 8).
+     */
+    public AsyncPasswordManager(PasswordManager passwordManager) {
+        this(passwordManager, Runtime.getRuntime().availableProcessors(),
+            Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    public AsyncPasswordManager(PasswordManager passwordManager, int kdfThreads, int ioThreads) {
+        this(passwordManager, new KdfScheduler(kdfThreads), ioThreads);
+    }
+
+    /**
+     * Creates an AsyncPasswordManager that derives keys through the given
+     * scheduler. The scheduler is closed along with this manager.
+     */
+    public AsyncPasswordManager(PasswordManager passwordManager, KdfScheduler kdfScheduler, int ioThreads) {
+        if (ioThreads < 1) throw new IllegalArgumentException("Thread count must be positive");
+        this.passwordManager = passwordManager;
+        this.kdfScheduler = kdfScheduler;
+        this.ioExecutor = Executors.newFixedThreadPool(ioThreads, daemonThreads("vaultguard-io-"));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public PasswordManager getPasswordManager() {
+        return passwordManager;
+    }
+
+    public KdfScheduler getKdfScheduler() {
+        return kdfScheduler;
+    }
+
+    /**
+     * Registers a new user, as PasswordManager.registerSession. Its key
+     * derivation is queued under the username.
+     *
+     * @return the new user's session, or null if registration failed
+     */
+    public CompletableFuture<VaultSession> registerSession(String username, String password) {
+        return registerSession(username, password, null);
+    }
+
+    /**
+     * Registers a new user, queueing the key derivation under the given
+     * source, such as the client's address, or under the username if it is
+     * null.
+     */
+    public CompletableFuture<VaultSession> registerSession(String username, String password, String source) {
+        return registerSession(username, password, source, null);
+    }
+
+    /**
+     * Registers a new user, queueing the key derivation under the given
+     * client, such as a connection, of the given source, as
+     * KdfScheduler.submit.
+     */
+    public CompletableFuture<VaultSession> registerSession(String username, String password,
+                                                           String source, String client) {
+        if (!passwordManager.userService.validateUsernameAndPassword(username, password)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return run(ioExecutor, () -> passwordManager.storageService.readVaultHeader(username) != null)
+            .thenCompose(exists -> {
+                if (exists) return CompletableFuture.completedFuture(null); //username already exists
+                byte[] salt = passwordManager.userService.generateSalt();
+                return kdfScheduler.submit(source != null ? source : username, client,
+                        () -> passwordManager.encryptionService.deriveKey(password, salt))
+                    .thenCompose(tempKey -> run(ioExecutor, () -> passwordManager.createVault(username, salt, tempKey)));
+            })
+            .exceptionally(e -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof KdfRejectedException) throw (KdfRejectedException) cause;
+                LOG.log(Level.WARNING, "Registering " + username + " failed", cause);
+                return null;
+            });
+    }
+
+    /**
+     * Logs a user in, as PasswordManager.loginSession. Its key derivation
+     * is queued under the username.
+     *
+     * @return the user's session, or null if login failed
+     */
+    public CompletableFuture<VaultSession> loginSession(String username, String password) {
+        return loginSession(username, password, null);
+    }
+
+    /**
+     * Logs a user in, queueing the key derivation under the given source,
+     * such as the client's address, or under the username if it is null.
+     * A vault that needs upgrading derives its new key through the
+     * scheduler too, under the same source; if that derivation is turned
+     * away the login still succeeds and the upgrade waits for a later one.
+     */
+    public CompletableFuture<VaultSession> loginSession(String username, String password, String source) {
+        return loginSession(username, password, source, null);
+    }
+
+    /**
+     * Logs a user in, queueing the key derivations under the given client,
+     * such as a connection, of the given source, as KdfScheduler.submit.
+     */
+    public CompletableFuture<VaultSession> loginSession(String username, String password,
+                                                        String source, String client) {
+        if (!passwordManager.userService.validateUsernameAndPassword(username, password)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return loginSession(username, password, source != null ? source : username, client, 1);
+    }
+
+    private CompletableFuture<VaultSession> loginSession(String username, String password,
+                                                         String source, String client, int attempt) {
+        return run(ioExecutor, () -> passwordManager.storageService.readVaultHeader(username))
+            .thenCompose(header -> {
+                if (header == null) return CompletableFuture.completedFuture(null); //username does not exist
+                if (!passwordManager.hasSupportedKdf(header)) return CompletableFuture.completedFuture(null);
+                return kdfScheduler.submit(source, client, () -> passwordManager.deriveWrappingKey(header, password))
+                    .thenCompose(wrappingKey -> run(ioExecutor,
+                        () -> passwordManager.unlockSession(username, header, wrappingKey)))
+                    .thenCompose(session -> upgradeSession(session, password, header, source, client));
+            })
+            .thenCompose(session -> {
+                //A concurrent login upgraded the vault and closed this
+                //session; start over from the new header, as loginSession
+                if (session == null || session.isOpen()) return CompletableFuture.completedFuture(session);
+                if (attempt >= PasswordManager.MAX_LOGIN_ATTEMPTS) return CompletableFuture.completedFuture(null);
+                return loginSession(username, password, source, client, attempt + 1);
+            });
+    }
+
+    private CompletableFuture<VaultSession> upgradeSession(VaultSession session, String password,
+                                                           VaultHeader header, String source, String client) {
+        if (session == null) return CompletableFuture.completedFuture(null);
+        if (!session.needsKeyUpgrade(header)) {
+            session.resumeKeyRotation();
+            return CompletableFuture.completedFuture(session);
+        }
+
+        byte[] salt = passwordManager.userService.generateSalt();
+        return kdfScheduler.submit(source, client, () -> passwordManager.encryptionService.deriveKey(password, salt))
+            .handle((newWrappingKey, failure) -> newWrappingKey)
+            .thenCompose(newWrappingKey -> run(ioExecutor, () -> {
+                if (newWrappingKey != null) {
+                    session.upgradeVaultKeys(salt, newWrappingKey);
+                }
+                session.resumeKeyRotation();
+                return session;
+            }));
+    }
+
+    /**
+     * Changes the session's master password. It derives two keys, so it
+     * goes through the scheduler, queued under the username.
+     */
+    public CompletableFuture<Boolean> changePassword(VaultSession session, String currentPassword, String newPassword) {
+        return kdfScheduler.submit(session.getUsername(), () -> session.changePassword(currentPassword, newPassword));
+    }
+
+    /**
+     * Starts a key rotation, as VaultSession.rotateKey. The future
+     * completes once the rotation has started; it carries on in the
+     * background until session.awaitKeyRotation reports it done.
+     */
+    public CompletableFuture<Boolean> rotateKey(VaultSession session) {
+        return run(ioExecutor, session::rotateKey);
+    }
+
+    public CompletableFuture<List<String>> getVaultKeyNames(VaultSession session) {
+        return run(ioExecutor, session::getVaultKeyNames);
+    }
+
+    public CompletableFuture<String> getKeyValue(VaultSession session, String keyName) {
+        return run(ioExecutor, () -> session.getKeyValue(keyName));
+    }
+
+    public CompletableFuture<Boolean> addKey(VaultSession session, String name, String value) {
+        return run(ioExecutor, () -> session.addKey(name, value));
+    }
+
+    public CompletableFuture<Boolean> editKey(VaultSession session, String name, String newValue) {
+        return run(ioExecutor, () -> session.editKey(name, newValue));
+    }
+
+    public CompletableFuture<Boolean> deleteKey(VaultSession session, String name) {
+        return run(ioExecutor, () -> session.deleteKey(name));
+    }
+
+    public CompletableFuture<Map<String, Boolean>> addKeys(VaultSession session, Map<String, String> keys) {
+        return run(ioExecutor, () -> session.addKeys(keys));
+    }
+
+    public CompletableFuture<Map<String, Boolean>> editKeys(VaultSession session, Map<String, String> keys) {
+        return run(ioExecutor, () -> session.editKeys(keys));
+    }
+
+    public CompletableFuture<Map<String, Boolean>> deleteKeys(VaultSession session, Collection<String> names) {
+        return run(ioExecutor, () -> session.deleteKeys(names));
+    }
+
+    public CompletableFuture<Map<String, String>> decryptAll(VaultSession session) {
+        return run(ioExecutor, session::decryptAll);
+    }
+
+    /**
+     * Generates a strong password. This is cheap, so it runs on the
+     * calling thread.
+     */
+    public CompletableFuture<String> generateStrongPassword() {
+        return CompletableFuture.completedFuture(passwordManager.generateStrongPassword());
+    }
+
+    /**
+     * Stops the scheduler and the I/O pool. Queued operations, key
+     * derivations included, and later ones fail with
+     * RejectedExecutionException; running ones are interrupted. Sessions
+     * stay open, and key rotations they started carry on in the
+     * background on the PasswordManager's rotation threads; callers that
+     * need them finished should awaitKeyRotation before closing their
+     * sessions.
+     */
+    @Override
+    public void close() {
+        kdfScheduler.close();
+        for (Runnable abandoned : ioExecutor.shutdownNow()) {
+            if (abandoned instanceof Task) {
+                ((Task<?>) abandoned).future.completeExceptionally(
+                    new RejectedExecutionException("AsyncPasswordManager is closed"));
+            }
+        }
+    }
+
+    private static class Task<T> implements Runnable {
+        final Callable<T> operation;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Task(Callable<T> operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(operation.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static <T> CompletableFuture<T> run(Executor executor, Callable<T> operation) {
+        Task<T> task = new Task<>(operation);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.future.completeExceptionally(e);
+        }
+        return task.future;
+    }
+}
@@ -0,0 +1,17 @@
+package com.vaultguard.controller;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when the KdfScheduler turns a key derivation away because its
+ * source already has too many queued, the queue is full, or the derivation
+ * could not start before its deadline. Nothing was derived; the caller can
+ * retry later.
+ */
+public class KdfRejectedException extends RejectedExecutionException {
+    private static final long serialVersionUID = 1L;
+
+    public KdfRejectedException(String message) {
+        super(message);
+    }
+}
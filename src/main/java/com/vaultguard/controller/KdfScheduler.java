@@ -0,0 +1,416 @@
+package com.vaultguard.controller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for key derivations. Each derivation costs a full
+ * PBKDF2 run, so a burst of logins, or someone guessing passwords, could
+ * otherwise occupy every core and stall everybody else's.
+ *
+ * At most maxConcurrent derivations run at once, on the scheduler's own
+ * threads. Waiting derivations are queued per source (a client address or
+ * a username) and the sources are served round robin, so a source with a
+ * hundred queued attempts gets no more turns than one with a single login.
+ * Within a source, derivations may be queued per client as well, such as
+ * per connection, and that source's turns go round robin across its
+ * clients. Opening more clients therefore never earns a source more turns.
+ * A derivation is rejected up front when its client already has
+ * maxQueuedPerClient waiting, when the queue holds maxQueued, or when the
+ * estimated wait already exceeds maxWaitMillis. One that still misses its
+ * deadline is dropped rather than run for a caller that has given up.
+ * Rejected derivations fail with KdfRejectedException.
+ */
+public class KdfScheduler implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+    public static final int DEFAULT_MAX_QUEUED_PER_CLIENT = 4;
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 5_000;
+
+    private static class Task<T> {
+        final Callable<T> derivation;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final long queuedNanos;
+        final long deadlineNanos;
+
+        Task(Callable<T> derivation, long queuedNanos, long deadlineNanos) {
+            this.derivation = derivation;
+            this.queuedNanos = queuedNanos;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        void run() {
+            try {
+                future.complete(derivation.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    //Derivations waiting for one source, queued per client
+    private static class SourceQueue {
+        final Map<String, ArrayDeque<Task<?>>> clients = new HashMap<>();
+        //Clients with queued derivations, in the order they will next be served
+        final ArrayDeque<String> turns = new ArrayDeque<>();
+        int size = 0;
+    }
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final int maxQueuedPerClient;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition taskQueued = lock.newCondition();
+    private final Map<String, SourceQueue> queues = new HashMap<>();
+    //Sources with queued derivations, in the order they will next be served
+    private final ArrayDeque<String> turns = new ArrayDeque<>();
+    private int queued = 0;
+    private int running = 0;
+    private boolean closed = false;
+
+    //Moving average of how long one derivation takes, used to estimate waits
+    private long derivationNanos = 0;
+    private long admitted = 0;
+    private long rejected = 0;
+    private long expired = 0;
+    private long completed = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanosSeen = 0;
+
+    /**
+     * Creates a scheduler running up to maxConcurrent derivations at once,
+     * with the default queue limits and deadline.
+     */
+    public KdfScheduler(int maxConcurrent) {
+        this(maxConcurrent, DEFAULT_MAX_QUEUED, DEFAULT_MAX_QUEUED_PER_CLIENT, DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    public KdfScheduler(int maxConcurrent, int maxQueued, int maxQueuedPerClient, long maxWaitMillis) {
+        if (maxConcurrent < 1 || maxQueued < 1 || maxQueuedPerClient < 1 || maxWaitMillis < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerClient = maxQueuedPerClient;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        for (int i = 1; i <= maxConcurrent; i++) {
+            Thread worker = new Thread(this::work, "vaultguard-kdf-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a derivation for the given source, which is its only client.
+     *
+     * @return a future completed with the derivation's result, or failed
+     * with KdfRejectedException if it was not admitted or missed its
+     * deadline
+     */
+    public <T> CompletableFuture<T> submit(String source, Callable<T> derivation) {
+        return submit(source, null, derivation);
+    }
+
+    /**
+     * Queues a derivation for the given client of the given source. A null
+     * client is one client of its own, shared by every null submission for
+     * the source.
+     *
+     * @return a future completed with the derivation's result, or failed
+     * with KdfRejectedException if it was not admitted or missed its
+     * deadline
+     */
+    public <T> CompletableFuture<T> submit(String source, String client, Callable<T> derivation) {
+        if (source == null) source = "";
+        if (client == null) client = "";
+        long now = System.nanoTime();
+        Task<T> task = new Task<>(derivation, now, now + maxWaitNanos);
+
+        lock.lock();
+        try {
+            if (closed) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("KdfScheduler is closed"));
+            }
+            SourceQueue queue = queues.get(source);
+            ArrayDeque<Task<?>> clientQueue = queue == null ? null : queue.clients.get(client);
+            int ahead = clientQueue == null ? 0 : clientQueue.size();
+            String reason = null;
+            if (ahead >= maxQueuedPerClient) {
+                reason = "Too many key derivations queued for this client";
+            } else if (queued >= maxQueued) {
+                reason = "Key derivation queue is full";
+            } else if (estimateWaitNanos(queue, clientQueue) > maxWaitNanos) {
+                reason = "Key derivation queue is too long to meet the deadline";
+            }
+            if (reason != null) {
+                rejected++;
+                return CompletableFuture.failedFuture(new KdfRejectedException(reason));
+            }
+
+            if (queue == null) {
+                queue = new SourceQueue();
+                queues.put(source, queue);
+                turns.addLast(source);
+            }
+            if (clientQueue == null) {
+                clientQueue = new ArrayDeque<>();
+                queue.clients.put(client, clientQueue);
+                queue.turns.addLast(client);
+            }
+            clientQueue.addLast(task);
+            queue.size++;
+            queued++;
+            admitted++;
+            taskQueued.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task.future;
+    }
+
+    /**
+     * Estimates how long a derivation would wait if queued behind the
+     * others in its client's queue. Both queues may be null if nothing is
+     * queued for them yet. Round robin serves each other client of the
+     * source up to ahead + 1 times before reaching it, and each other
+     * source as many times as this source gets turns. Called with the
+     * lock held.
+     */
+    private long estimateWaitNanos(SourceQueue queue, ArrayDeque<Task<?>> clientQueue) {
+        if (derivationNanos == 0) return 0; //nothing measured yet
+        int ahead = clientQueue == null ? 0 : clientQueue.size();
+        long sourceTurns = ahead + 1;
+        if (queue != null) {
+            for (ArrayDeque<Task<?>> other : queue.clients.values()) {
+                if (other != clientQueue) {
+                    sourceTurns += Math.min(other.size(), ahead + 1);
+                }
+            }
+        }
+        long before = running + sourceTurns - 1;
+        for (SourceQueue other : queues.values()) {
+            if (other != queue) {
+                before += Math.min(other.size, sourceTurns);
+            }
+        }
+        return before * derivationNanos / maxConcurrent;
+    }
+
+    private void work() {
+        while (true) {
+            Task<?> task;
+            boolean late;
+            lock.lock();
+            try {
+                while (!closed && turns.isEmpty()) {
+                    taskQueued.awaitUninterruptibly();
+                }
+                if (closed) return;
+                task = next();
+                long now = System.nanoTime();
+                late = now - task.deadlineNanos > 0;
+                if (late) {
+                    expired++;
+                } else {
+                    running++;
+                    long waitNanos = now - task.queuedNanos;
+                    totalWaitNanos += waitNanos;
+                    maxWaitNanosSeen = Math.max(maxWaitNanosSeen, waitNanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            //Futures are completed outside the lock, as their callbacks run inline
+            if (late) {
+                task.future.completeExceptionally(
+                    new KdfRejectedException("Key derivation did not start before its deadline"));
+                continue;
+            }
+
+            long start = System.nanoTime();
+            task.run();
+            long elapsed = System.nanoTime() - start;
+
+            lock.lock();
+            try {
+                running--;
+                completed++;
+                derivationNanos = derivationNanos == 0 ? elapsed : derivationNanos + (elapsed - derivationNanos) / 8;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the next derivation in round robin order. Called with the lock
+     * held and at least one derivation queued.
+     */
+    private Task<?> next() {
+        String source = turns.pollFirst();
+        SourceQueue queue = queues.get(source);
+        String client = queue.turns.pollFirst();
+        ArrayDeque<Task<?>> clientQueue = queue.clients.get(client);
+        Task<?> task = clientQueue.pollFirst();
+        if (clientQueue.isEmpty()) {
+            queue.clients.remove(client);
+        } else {
+            queue.turns.addLast(client);
+        }
+        if (--queue.size == 0) {
+            queues.remove(source);
+        } else {
+            turns.addLast(source);
+        }
+        queued--;
+        return task;
+    }
+
+    /**
+     * Stops the scheduler. Queued derivations fail with
+     * RejectedExecutionException; running ones finish.
+     */
+    @Override
+    public void close() {
+        List<Task<?>> abandoned = new ArrayList<>();
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            for (SourceQueue queue : queues.values()) {
+                for (ArrayDeque<Task<?>> clientQueue : queue.clients.values()) {
+                    abandoned.addAll(clientQueue);
+                }
+            }
+            queues.clear();
+            turns.clear();
+            queued = 0;
+            taskQueued.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Task<?> task : abandoned) {
+            task.future.completeExceptionally(new RejectedExecutionException("KdfScheduler is closed"));
+        }
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return the number of derivations waiting to start
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of derivations from the source waiting to start
+     */
+    public int getQueueDepth(String source) {
+        lock.lock();
+        try {
+            SourceQueue queue = queues.get(source == null ? "" : source);
+            return queue == null ? 0 : queue.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAdmittedCount() {
+        lock.lock();
+        try {
+            return admitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of derivations rejected when submitted
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of admitted derivations dropped at their deadline
+     */
+    public long getExpiredCount() {
+        lock.lock();
+        try {
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCompletedCount() {
+        lock.lock();
+        try {
+            return completed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the average time derivations that ran spent queued, in
+     * milliseconds
+     */
+    public double getAverageWaitMillis() {
+        lock.lock();
+        try {
+            long started = completed + running;
+            return started == 0 ? 0 : totalWaitNanos / (double) started / 1_000_000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the longest time a derivation that ran spent queued, in
+     * milliseconds
+     */
+    public double getMaxWaitMillis() {
+        lock.lock();
+        try {
+            return maxWaitNanosSeen / 1_000_000.0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
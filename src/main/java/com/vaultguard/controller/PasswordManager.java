@@ -1,38 +1,74 @@
 package com.vaultguard.controller;
 
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 
 import com.vaultguard.model.EncryptedData;
 import com.vaultguard.model.VaultEntry;
 import com.vaultguard.model.VaultFile;
+import com.vaultguard.model.VaultHeader;
 import com.vaultguard.services.EncryptionService;
+import com.vaultguard.services.ImportExportService;
+import com.vaultguard.services.KeyRing;
+import com.vaultguard.services.MappedVault;
+import com.vaultguard.services.NonceSequence;
 import com.vaultguard.services.PasswordGenerationService;
 import com.vaultguard.services.StorageService;
 import com.vaultguard.services.UserService;
 
+/**
+ * Entry point for registering, logging in and generating passwords.
+ *
+ * registerSession and loginSession return a VaultSession for each user,
+ * and any number of sessions can share one PasswordManager and its
+ * services from different threads. The methods that take no session work
+ * on the session of the last register or login, for single-user callers
+ * such as the UI.
+ */
 public class PasswordManager {
 
-    private static final String AUTH_KEY_NAME = "vaultguard-auth";
     private static final int GENERATED_PASSWORD_LENGTH = 16;
 
-    private static final int MIN_KEY_NAME_LENGTH = 1;
-    private static final int MAX_KEY_NAME_LENGTH = 64;
-    private static final String KEY_NAME_PATTERN = "^[A-Za-z0-9_\\- ]+$";
+    //GCM nonce counters reserved per write to the nonce file
+    private static final long NONCE_BLOCK_SIZE = 1 << 16;
 
-    private static final int MIN_KEY_VALUE_LENGTH = 1;
-    private static final int MAX_KEY_VALUE_LENGTH = 1024;
+    //Key rotation re-encrypts this many entries per save, and pauses
+    //between saves so it never competes with the user for long
+    private static final int ROTATION_BATCH_SIZE = 256;
+    private static final long ROTATION_PAUSE_MILLIS = 20;
 
-    private UserService userService;
-    private EncryptionService encryptionService;
-    private StorageService storageService;
-    private PasswordGenerationService passwordGenerationService;
+    //A login starts over when a concurrent login upgrades the vault under
+    //it; more attempts than this and it gives up
+    static final int MAX_LOGIN_ATTEMPTS = 3;
 
-    private SecretKey activeEncryptionKey = null;
-    private String activeUsername = null;
+    final UserService userService;
+    final EncryptionService encryptionService;
+    final StorageService storageService;
+    final PasswordGenerationService passwordGenerationService;
+    final ImportExportService importExportService;
+
+    //Session of the last register or login, used by the methods that
+    //take no session
+    private volatile VaultSession activeSession = null;
+
+    private volatile int rotationBatchSize = ROTATION_BATCH_SIZE;
+    private volatile long rotationPauseMillis = ROTATION_PAUSE_MILLIS;
+    private ExecutorService rotationExecutor = null;
 
     public PasswordManager(
             String storagePath,
@@ -40,10 +76,20 @@ public class PasswordManager {
             EncryptionService encryptionService,
             PasswordGenerationService passwordGenerationService
     ) {
-        this.storageService = new StorageService(storagePath);
+        this(new StorageService(storagePath), userService, encryptionService, passwordGenerationService);
+    }
+
+    public PasswordManager(
+            StorageService storageService,
+            UserService userService,
+            EncryptionService encryptionService,
+            PasswordGenerationService passwordGenerationService
+    ) {
+        this.storageService = storageService;
         this.userService = userService != null ? userService : new UserService();
         this.encryptionService = encryptionService != null ? encryptionService : new EncryptionService();
         this.passwordGenerationService = passwordGenerationService != null ? passwordGenerationService : new PasswordGenerationService();
+        this.importExportService = new ImportExportService(this.encryptionService);
     }
 
     public PasswordManager(String storagePath) {
@@ -52,44 +98,121 @@ public class PasswordManager {
 
 
     /**
-     * Attempts to register a new user
+     * Attempts to register a new user and logs them in.
      *
-     * @return true if registration successful, false otherwise
+     * @return the new user's session, or null if registration failed
      */
-    public boolean register(String username, String password) throws Exception {
-        if (!userService.validateUsernameAndPassword(username, password)) return false;
+    public VaultSession registerSession(String username, String password) throws Exception {
+        if (!userService.validateUsernameAndPassword(username, password)) return null;
 
-        VaultFile vault = storageService.loadVault(username);
-        if (vault != null) return false; //username already exists
+        if (storageService.readVaultHeader(username) != null) return null; //username already exists
 
         try {
             byte[] salt = userService.generateSalt();
             SecretKey tempKey = encryptionService.deriveKey(password, salt);
+            return createVault(username, salt, tempKey);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            EncryptedData encryptedAuthKey = encryptionService.encrypt("dummy", tempKey);
+    /**
+     * Writes a new, empty vault protected by the password-derived key and
+     * opens a session on it.
+     */
+    VaultSession createVault(String username, byte[] salt, SecretKey tempKey) throws Exception {
+        //Entries are encrypted with a random data key, which is stored
+        //wrapped by the password-derived key
+        SecretKey dataKey = encryptionService.generateDataKey();
+        NonceSequence nonces = newNonceSequence(username);
+        EncryptedData encryptedAuthKey = encryptionService.encrypt("dummy", dataKey, nonces);
 
-            VaultEntry authVaultEntry = new VaultEntry(AUTH_KEY_NAME, encryptedAuthKey);
-            List<VaultEntry> keys = new ArrayList<>();
-            keys.add(authVaultEntry);
+        VaultEntry authVaultEntry = new VaultEntry(VaultSession.AUTH_KEY_NAME, encryptedAuthKey);
+        List<VaultEntry> keys = new ArrayList<>();
+        keys.add(authVaultEntry);
 
-            String saltString = Base64.getEncoder().encodeToString(salt);
+        String saltString = Base64.getEncoder().encodeToString(salt);
 
-            VaultFile vaultFile = new VaultFile(saltString, keys);
+        VaultFile vaultFile = new VaultFile(saltString, encryptionService.getKdfAlgorithm(), encryptionService.getIterations(), keys);
+        vaultFile.wrappedKey = encryptionService.wrapKey(dataKey, tempKey);
 
-            storageService.saveVault(username, vaultFile);
+        storageService.saveVault(username, vaultFile);
 
-            //Log user in after registration
-            activeEncryptionKey = tempKey;
-            activeUsername = username;
+        //Log user in after registration
+        VaultSession session = new VaultSession(this, username, new KeyRing(0, dataKey, null), nonces, tempKey,
+            vaultFile.keyGeneration, vaultFile.wrappedKey, vaultFile.rotationKey);
+        session.cacheSaved(vaultFile);
+        return session;
+    }
 
-            return true;
+    /**
+     * Attempts to log the user in by checking their credentials against
+     * their vault file. Only the vault header is read, so login takes the
+     * same time however many keys the vault holds. A key rotation that was
+     * interrupted carries on in the background.
+     *
+     * If another login upgrades the vault at the same time, the header
+     * read here no longer holds the vault's keys and the session is
+     * closed while upgrading; the login then starts over from the new
+     * header.
+     *
+     * @return the user's session, or null if login failed
+     */
+    public VaultSession loginSession(String username, String password) throws Exception {
+        if (!userService.validateUsernameAndPassword(username, password)) return null;
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+        for (int attempt = 1; attempt <= MAX_LOGIN_ATTEMPTS; attempt++) {
+            VaultHeader header = storageService.readVaultHeader(username);
+            if (header == null) return null; //username does not exist
+            if (!hasSupportedKdf(header)) return null;
+
+            VaultSession session = openSession(username, password, header, deriveWrappingKey(header, password));
+            if (session == null || session.isOpen()) return session;
         }
+        return null;
     }
-    
+
+    /**
+     * Checks a password-derived key against the vault and, if it unlocks
+     * it, opens a session. The vault is upgraded if needed and an
+     * interrupted key rotation is resumed, as for loginSession.
+     *
+     * @return the session, or null if the key does not unlock the vault
+     */
+    VaultSession openSession(String username, String password, VaultHeader header, SecretKey wrappingKey) throws Exception {
+        VaultSession session = unlockSession(username, header, wrappingKey);
+        if (session == null) return null;
+
+        session.upgradeVaultKeys(password, header);
+        session.resumeKeyRotation();
+        return session;
+    }
+
+    /**
+     * Checks a password-derived key against the vault and, if it unlocks
+     * it, opens a session without upgrading the vault or resuming its key
+     * rotation.
+     *
+     * @return the session, or null if the key does not unlock the vault
+     */
+    VaultSession unlockSession(String username, VaultHeader header, SecretKey wrappingKey) throws Exception {
+        KeyRing vaultKeys = unlockVault(username, header, wrappingKey);
+        if (vaultKeys == null) return null;
+
+        return new VaultSession(this, username, vaultKeys, newNonceSequence(username), wrappingKey,
+            header.getKeyGeneration(), header.getWrappedKey(), header.getRotationKey());
+    }
+
+    /**
+     * Attempts to register a new user
+     *
+     * @return true if registration successful, false otherwise
+     */
+    public boolean register(String username, String password) throws Exception {
+        return activate(registerSession(username, password));
+    }
+
     /**
      * Attempts to login the user by checking their credentials
      * against their vault file.
@@ -97,92 +220,117 @@ public class PasswordManager {
      * @return true if login successful, false otherwise
      */
     public boolean login(String username, String password) throws Exception {
-        if (!userService.validateUsernameAndPassword(username, password)) return false;
+        return activate(loginSession(username, password));
+    }
 
-        VaultFile vault = storageService.loadVault(username);
-        if (vault == null) return false; //username does not exist
+    private synchronized boolean activate(VaultSession session) {
+        if (session == null) return false;
+        if (activeSession != null) {
+            activeSession.close();
+        }
+        activeSession = session;
+        return true;
+    }
 
-        byte[] salt = Base64.getDecoder().decode(vault.salt);
-        SecretKey tempKey = encryptionService.deriveKey(password, salt);
+    /**
+     * Returns the session of the last register or login, or null if logged out.
+     */
+    public VaultSession getActiveSession() {
+        return activeSession;
+    }
+
+    /**
+     * Returns whether the header's KDF parameters can be used. A corrupt
+     * or tampered header fails the login instead of throwing, or pinning
+     * a thread with a huge iteration count.
+     */
+    boolean hasSupportedKdf(VaultHeader header) {
+        return encryptionService.isSupportedKdf(header.getKdfAlgorithm(), header.getKdfIterations());
+    }
 
-        EncryptedData authKeyData = null;
+    SecretKey deriveWrappingKey(VaultHeader header, String password) throws GeneralSecurityException {
+        byte[] salt = Base64.getDecoder().decode(header.getSalt());
+        return encryptionService.deriveKey(password, salt, header.getKdfAlgorithm(), header.getKdfIterations());
+    }
 
-        for (VaultEntry vaultEntry : vault.keys) {
-            if (vaultEntry.name.equals(AUTH_KEY_NAME)) {
-                authKeyData = vaultEntry.encryptedKey;
-                break;
+    /**
+     * Checks the password-derived key against a vault.
+     *
+     * @return the keys that encrypt the vault's entries, or null if the
+     * password is wrong
+     */
+    KeyRing unlockVault(String username, VaultHeader header, SecretKey tempKey) throws Exception {
+        //Unwrapping fails unless the password is right
+        if (header.getWrappedKey() != null) {
+            try {
+                SecretKey currentKey = encryptionService.unwrapKey(header.getWrappedKey(), tempKey);
+                SecretKey nextKey = header.getRotationKey() == null
+                    ? null : encryptionService.unwrapKey(header.getRotationKey(), tempKey);
+                return new KeyRing(header.getKeyGeneration(), currentKey, nextKey);
+            } catch (Exception e) {
+                return null;
             }
         }
 
+        //Legacy vault: entries use the password-derived key directly,
+        //so the auth entry has to be read from the payload
+        MappedVault vault = storageService.mapVault(username);
+        if (vault == null) return null;
+        EncryptedData authKeyData = vault.get(VaultSession.AUTH_KEY_NAME);
+
         //Auth key does not exist (should never occur)
-        if (authKeyData == null) return false;
+        if (authKeyData == null) return null;
 
         //Attempt to decrypt the auth key with the derived key. 
         //If decrpytion fails it will throw an exception.
         try {
             encryptionService.decrypt(authKeyData, tempKey);
-            activeEncryptionKey = tempKey;
-            activeUsername = username;
-            return true;
+            return new KeyRing(0, tempKey, null);
         } catch (Exception e) {
-            return false;
+            return null;
         }
     }
 
     /**
-     * Logs out the current user
-     *
-     * @return void
+     * Returns a sequence of counter-based GCM nonces for the user's vault.
+     * Counters are reserved from the vault's nonce file a block at a time,
+     * so they stay unique across sessions, processes and crashes.
      */
-    public void logout() {
-        activeEncryptionKey = null;
-        activeUsername = null;
+    private NonceSequence newNonceSequence(String username) {
+        return new NonceSequence(count -> storageService.reserveNonces(username, count), NONCE_BLOCK_SIZE);
     }
 
     /**
-     * Returns a list of vault key names for the logged in user
-     *
-     * @return List<String>
+     * Sets how many entries a key rotation re-encrypts per save and how
+     * long it pauses between saves.
      */
-    public List<String> getVaultKeyNames() throws Exception {
-        List<String> keyNames = new ArrayList<>();
-        if (activeEncryptionKey == null || activeUsername == null) return keyNames;
-
-        VaultFile vault = storageService.loadVault(activeUsername);
-        if (vault == null) return keyNames;
+    public void setKeyRotationPace(int batchSize, long pauseMillis) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive");
+        this.rotationBatchSize = batchSize;
+        this.rotationPauseMillis = Math.max(0, pauseMillis);
+    }
 
-        for (VaultEntry vaultEntry : vault.keys) {
-            if (!vaultEntry.name.equals(AUTH_KEY_NAME)) {
-                keyNames.add(vaultEntry.name);
-            }
-        }
+    int getRotationBatchSize() {
+        return rotationBatchSize;
+    }
 
-        return keyNames;
+    long getRotationPauseMillis() {
+        return rotationPauseMillis;
     }
 
     /**
-     * Returns the decrypted value of a key in the vault
-     *
-     * @return String
+     * Returns the executor that runs key rotations for all sessions. Its
+     * daemon threads are started on demand and exit when idle.
      */
-    public String getKeyValue(String keyName) throws Exception {
-        if (keyName.equals(AUTH_KEY_NAME)) return null;
-        if (activeEncryptionKey == null || activeUsername == null) return null;
-
-        VaultFile vault = storageService.loadVault(activeUsername);
-        if (vault == null) return null;
-
-        for (VaultEntry vaultEntry : vault.keys) {
-            if (vaultEntry.name.equals(keyName)) {
-                try {
-                    String decryptedValue = encryptionService.decrypt(vaultEntry.encryptedKey, activeEncryptionKey);
-                    return decryptedValue;
-                } catch (Exception e) {
-                    return null;
-                }
-            }
+    synchronized ExecutorService rotationExecutor() {
+        if (rotationExecutor == null) {
+            rotationExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "vaultguard-key-rotation");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        return null;
+        return rotationExecutor;
     }
 
     /**
@@ -195,55 +343,92 @@ public class PasswordManager {
     }
 
     /**
-     * Validates key name
+     * Logs out the current user
      *
-     * @return true if valid, false otherwise
+     * @return void
      */
-    private boolean isValidKeyName(String keyName) {
-        if (keyName == null) return false;
-        if (keyName.equals(AUTH_KEY_NAME)) return false;
-        if (keyName.length() < MIN_KEY_NAME_LENGTH || keyName.length() > MAX_KEY_NAME_LENGTH) return false;
-        if (!keyName.matches(KEY_NAME_PATTERN)) return false;
-        if (keyName.trim().isEmpty()) return false;
-        return true;
+    public synchronized void logout() {
+        if (activeSession != null) {
+            activeSession.close();
+            activeSession = null;
+        }
     }
 
     /**
-     * Validates key value
+     * Changes the active user's master password.
      *
-     * @return true if valid, false otherwise
+     * @see VaultSession#changePassword
      */
-    private boolean isValidKeyValue(String keyValue) {
-        if (keyValue == null) return false;
-        if (keyValue.length() < MIN_KEY_VALUE_LENGTH || keyValue.length() > MAX_KEY_VALUE_LENGTH) return false;
-        if (keyValue.trim().isEmpty()) return false;
-        return true;
+    public boolean changePassword(String currentPassword, String newPassword) throws Exception {
+        VaultSession session = activeSession;
+        return session != null && session.changePassword(currentPassword, newPassword);
     }
 
     /**
-     * Adds a new key to the active user's vault
+     * Starts rotating the active user's data key.
      *
-     * @return true if added, false if error
+     * @see VaultSession#rotateKey
      */
-    public boolean addKey(String name, String value) throws Exception {
-        if (activeEncryptionKey == null || activeUsername == null) return false;
-        if(!isValidKeyName(name) || !isValidKeyValue(value)) return false;
+    public boolean rotateKey() throws Exception {
+        VaultSession session = activeSession;
+        return session != null && session.rotateKey();
+    }
 
-        VaultFile vault = storageService.loadVault(activeUsername);
-        if (vault == null) return false;
+    public boolean isKeyRotationInProgress() {
+        VaultSession session = activeSession;
+        return session != null && session.isKeyRotationInProgress();
+    }
 
-        for (VaultEntry vaultEntry : vault.keys) {
-            if (vaultEntry.name.equals(name)) {
-                return false; //Already exists
-            }
-        }
+    /**
+     * Waits for the active user's key rotation task to stop.
+     *
+     * @see VaultSession#awaitKeyRotation
+     */
+    public boolean awaitKeyRotation(long timeoutMillis) throws Exception {
+        VaultSession session = activeSession;
+        return session == null || session.awaitKeyRotation(timeoutMillis);
+    }
+
+    /**
+     * Returns a list of vault key names for the logged in user
+     *
+     * @return List<String>
+     */
+    public List<String> getVaultKeyNames() throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.getVaultKeyNames() : new ArrayList<>();
+    }
 
-        EncryptedData encryptedValue = encryptionService.encrypt(value, activeEncryptionKey);
-        VaultEntry newVaultEntry = new VaultEntry(name, encryptedValue);
-        vault.keys.add(newVaultEntry);
+    /**
+     * Returns the decrypted value of a key in the vault
+     *
+     * @return String
+     */
+    public String getKeyValue(String keyName) throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.getKeyValue(keyName) : null;
+    }
 
-        storageService.saveVault(activeUsername, vault);
-        return true;
+    /**
+     * Decrypts the UTF-8 value of a key into a caller-provided buffer.
+     *
+     * @return the number of bytes written, or -1 if there is no such key
+     * @throws ShortBufferException if the buffer is too small
+     * @see VaultSession#getKeyValue(String, ByteBuffer)
+     */
+    public int getKeyValue(String keyName, ByteBuffer out) throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.getKeyValue(keyName, out) : -1;
+    }
+
+    /**
+     * Adds a new key to the active user's vault
+     *
+     * @return true if added, false if error
+     */
+    public boolean addKey(String name, String value) throws Exception {
+        VaultSession session = activeSession;
+        return session != null && session.addKey(name, value);
     }
 
     /**
@@ -252,24 +437,8 @@ public class PasswordManager {
      * @return true if edited, false if error
      */
     public boolean editKey(String name, String newValue) throws Exception {
-        if (activeEncryptionKey == null || activeUsername == null) return false;
-        if(!isValidKeyName(name) || !isValidKeyValue(newValue)) return false;
-
-        VaultFile vault = storageService.loadVault(activeUsername);
-        if (vault == null) return false;
-
-        List<VaultEntry> keys = vault.keys;
-
-        for (int i = 0; i < keys.size(); i++) {
-            if (keys.get(i).name.equals(name)) {
-                EncryptedData encryptedValue = encryptionService.encrypt(newValue, activeEncryptionKey);
-                keys.set(i, new VaultEntry(name, encryptedValue));
-                storageService.saveVault(activeUsername, vault);
-                return true;
-            }
-        }
-
-        return false;
+        VaultSession session = activeSession;
+        return session != null && session.editKey(name, newValue);
     }
 
     /**
@@ -278,22 +447,92 @@ public class PasswordManager {
      * @return true if deleted, false if error.
      */
     public boolean deleteKey(String name) throws Exception {
-        if (activeEncryptionKey == null || activeUsername == null) return false;
-        if (!isValidKeyName(name)) return false;
+        VaultSession session = activeSession;
+        return session != null && session.deleteKey(name);
+    }
 
-        VaultFile vault = storageService.loadVault(activeUsername);
-        if (vault == null) return false;
+    /**
+     * Adds several new keys to the active user's vault.
+     *
+     * @return whether each key was added, in the order given
+     * @see VaultSession#addKeys
+     */
+    public Map<String, Boolean> addKeys(Map<String, String> keys) throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.addKeys(keys) : rejectAll(keys.keySet());
+    }
 
-        List<VaultEntry> keys = vault.keys;
+    /**
+     * Edits several existing keys in the active user's vault.
+     *
+     * @return whether each key was edited, in the order given
+     * @see VaultSession#editKeys
+     */
+    public Map<String, Boolean> editKeys(Map<String, String> keys) throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.editKeys(keys) : rejectAll(keys.keySet());
+    }
 
-        for (int i = 0; i < keys.size(); i++) {
-            if (keys.get(i).name.equals(name)) {
-                keys.remove(i);
-                storageService.saveVault(activeUsername, vault);
-                return true;
-            }
+    /**
+     * Deletes several keys from the active user's vault.
+     *
+     * @return whether each key was deleted, in the order given
+     * @see VaultSession#deleteKeys
+     */
+    public Map<String, Boolean> deleteKeys(Collection<String> names) throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.deleteKeys(names) : rejectAll(names);
+    }
+
+    private static Map<String, Boolean> rejectAll(Collection<String> names) {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        for (String name : names) {
+            results.put(name, false);
         }
+        return results;
+    }
 
-        return false;
+    /**
+     * Imports keys from CSV or JSON into the active user's vault.
+     *
+     * @return whether each key was imported, in input order
+     * @see VaultSession#importKeys
+     */
+    public Map<String, Boolean> importKeys(Reader in, ImportExportService.Format format) throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.importKeys(in, format) : new LinkedHashMap<>();
+    }
+
+    /**
+     * Exports the active user's keys as CSV or JSON.
+     *
+     * @return the number of keys written
+     * @see VaultSession#exportKeys
+     */
+    public int exportKeys(Writer out, ImportExportService.Format format) throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.exportKeys(out, format) : 0;
+    }
+
+    /**
+     * Streams the active user's keys with their decrypted values.
+     *
+     * @return the entries, or an empty stream if not logged in
+     * @see VaultSession#streamDecrypted
+     */
+    public Stream<Map.Entry<String, String>> streamDecrypted() throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.streamDecrypted() : Stream.empty();
+    }
+
+    /**
+     * Decrypts all of the active user's keys.
+     *
+     * @return key name -> value in vault order, empty if not logged in
+     * @see VaultSession#decryptAll
+     */
+    public Map<String, String> decryptAll() throws Exception {
+        VaultSession session = activeSession;
+        return session != null ? session.decryptAll() : Collections.emptyMap();
     }
 }
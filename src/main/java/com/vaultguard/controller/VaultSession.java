@@ -0,0 +1,1127 @@
+package com.vaultguard.controller;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+import com.vaultguard.model.EncryptedData;
+import com.vaultguard.model.VaultChange;
+import com.vaultguard.model.VaultEntry;
+import com.vaultguard.model.VaultFile;
+import com.vaultguard.model.VaultHeader;
+import com.vaultguard.model.VaultStamp;
+import com.vaultguard.services.ImportExportService;
+import com.vaultguard.services.KeyRing;
+import com.vaultguard.services.MappedVault;
+import com.vaultguard.services.NonceSequence;
+import com.vaultguard.services.VaultConflictException;
+
+/**
+ * A logged-in user's access to their vault. PasswordManager's
+ * loginSession and registerSession return one, and every vault
+ * operation runs against it: it holds the user's data keys, their GCM
+ * nonce sequence and a cached copy of their vault.
+ *
+ * Sessions share PasswordManager's services but nothing else. Any number
+ * of them, for any users, can be used at once from different threads.
+ * Each session serializes its own operations. Saves are checked against
+ * the version of the vault they started from, and an operation that loses
+ * a race with another session or process is run again on the new version.
+ * Whenever the vault is read again its header is checked against the keys
+ * the session holds: keys rotated by another session are picked up, and a
+ * session whose keys were re-wrapped under another password is closed.
+ * After close() the keys are forgotten and every operation behaves as if
+ * logged out.
+ */
+public class VaultSession {
+
+    static final String AUTH_KEY_NAME = "vaultguard-auth";
+
+    private static final int MIN_KEY_NAME_LENGTH = 1;
+    private static final int MAX_KEY_NAME_LENGTH = 64;
+    private static final String KEY_NAME_PATTERN = "^[A-Za-z0-9_\\- ]+$";
+
+    private static final int MIN_KEY_VALUE_LENGTH = 1;
+    private static final int MAX_KEY_VALUE_LENGTH = 1024;
+
+    //Times an operation is tried before a conflicting save is given up on
+    private static final int MAX_SAVE_ATTEMPTS = 8;
+
+    private static final Logger LOG = Logger.getLogger(VaultSession.class.getName());
+
+    private final PasswordManager manager;
+    private final String username;
+
+    private KeyRing keys;
+    private NonceSequence nonces;
+
+    //Password-derived key that wraps the data keys, kept so a key rotation
+    //can store the new key without asking for the password again
+    private SecretKey wrappingKey;
+
+    //The key fields of the vault header that keys came from, compared with
+    //the header whenever the vault is read from disk again
+    private int unlockedGeneration;
+    private EncryptedData unlockedWrappedKey;
+    private EncryptedData unlockedRotationKey;
+
+    //The user's vault, reused until the file on disk changes. Reads go
+    //through the lazily decoded view; cachedVault is only decoded in full
+    //once the vault is modified.
+    private MappedVault cachedView = null;
+    private VaultFile cachedVault = null;
+    private VaultStamp cachedVaultStamp = null;
+
+    private Future<?> rotationTask = null;
+    private Exception keyError = null;
+
+    /**
+     * @param keyGeneration the key generation, wrapped key and rotation key
+     * of the vault header that keys were unwrapped from
+     */
+    VaultSession(PasswordManager manager, String username, KeyRing keys, NonceSequence nonces, SecretKey wrappingKey,
+                 int keyGeneration, EncryptedData wrappedKey, EncryptedData rotationKey) {
+        this.manager = manager;
+        this.username = username;
+        this.keys = keys;
+        this.nonces = nonces;
+        this.wrappingKey = wrappingKey;
+        rememberHeaderKeys(keyGeneration, wrappedKey, rotationKey);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns false once the session has been closed.
+     */
+    public synchronized boolean isOpen() {
+        return keys != null;
+    }
+
+    /**
+     * Logs the session out. A key rotation in progress stops after its
+     * current batch and resumes at the user's next login.
+     */
+    public synchronized void close() {
+        keys = null;
+        nonces = null;
+        wrappingKey = null;
+        cacheVault(null, null);
+    }
+
+    /**
+     * Returns the error that stopped this session's last key rotation
+     * early, or its upgrade at login, or null. The vault keeps the
+     * rotation's progress and stays as it was after a failed upgrade;
+     * both are tried again at the next login.
+     */
+    public synchronized Exception getLastKeyError() {
+        return keyError;
+    }
+
+    /**
+     * Seeds the cache with a vault this session has just written.
+     */
+    synchronized void cacheSaved(VaultFile vault) throws IOException {
+        cacheVault(vault, manager.storageService.getVaultStamp(username));
+    }
+
+    /**
+     * Returns whether the vault needs upgrading after login: legacy vaults
+     * are moved to a wrapped data key, and vaults made with another KDF
+     * algorithm or at least 20% fewer iterations are re-wrapped with the
+     * current parameters. Smaller differences, such as from recalibrating
+     * on the same host, are left alone, and vaults are never downgraded.
+     */
+    boolean needsKeyUpgrade(VaultHeader header) {
+        boolean legacy = header.getWrappedKey() == null;
+        boolean sameAlgorithm = manager.encryptionService.getKdfAlgorithm().equals(header.getKdfAlgorithm());
+        boolean weakKdf = !sameAlgorithm || header.getKdfIterations() * 5L < manager.encryptionService.getIterations() * 4L;
+        return legacy || weakKdf;
+    }
+
+    /**
+     * Brings the vault up to date after login, if needsKeyUpgrade says it
+     * should be. If the upgrade fails the vault stays as it was.
+     */
+    void upgradeVaultKeys(String password, VaultHeader header) {
+        if (!needsKeyUpgrade(header)) return;
+
+        byte[] salt = manager.userService.generateSalt();
+        SecretKey newWrappingKey;
+        try {
+            newWrappingKey = manager.encryptionService.deriveKey(password, salt);
+        } catch (GeneralSecurityException e) {
+            upgradeFailed(e);
+            return;
+        }
+        upgradeVaultKeys(salt, newWrappingKey);
+    }
+
+    /**
+     * Upgrades the vault with a wrapping key already derived from the
+     * password and salt with the current KDF parameters, for callers that
+     * derive keys elsewhere.
+     */
+    synchronized void upgradeVaultKeys(byte[] salt, SecretKey newWrappingKey) {
+        try {
+            updateVault(() -> rekeyVault(salt, newWrappingKey));
+        } catch (Exception e) {
+            upgradeFailed(e);
+        }
+    }
+
+    private synchronized void upgradeFailed(Exception e) {
+        LOG.log(Level.WARNING, "Upgrading the keys of " + username + "'s vault failed", e);
+        keyError = e;
+    }
+
+    /**
+     * Changes the master password. Only the data key is re-wrapped, so the
+     * cost does not depend on the number of entries.
+     *
+     * @return true if changed, false if the session is closed, the current
+     * password is wrong, the new password is invalid or the vault's keys
+     * no longer match this session's
+     */
+    public synchronized boolean changePassword(String currentPassword, String newPassword) throws Exception {
+        if (keys == null) return false;
+        if (!manager.userService.validateUsernameAndPassword(username, currentPassword)) return false;
+        if (!manager.userService.validateUsernameAndPassword(username, newPassword)) return false;
+
+        VaultHeader header = manager.storageService.readVaultHeader(username);
+        if (header == null || !manager.hasSupportedKdf(header)) return false;
+        if (manager.unlockVault(username, header, manager.deriveWrappingKey(header, currentPassword)) == null) return false;
+
+        byte[] salt = manager.userService.generateSalt();
+        SecretKey newWrappingKey = manager.encryptionService.deriveKey(newPassword, salt);
+        return updateVault(() -> rekeyVault(salt, newWrappingKey));
+    }
+
+    /**
+     * Wraps the vault's data keys under newWrappingKey, derived from a
+     * password with salt and the current KDF parameters, and saves the
+     * vault. The keys come from the vault as loaded, unwrapped with this
+     * session's wrapping key, so a rotation saved by another session is
+     * kept. For a legacy vault, whose entries are encrypted with the old
+     * password-derived key, a data key is generated and every entry is
+     * re-encrypted under it first.
+     *
+     * @return false, with nothing written, if the session is closed or the
+     * vault's keys do not unwrap to this session's keys
+     */
+    private Boolean rekeyVault(byte[] salt, SecretKey newWrappingKey) throws Exception {
+        VaultFile vault = loadVault();
+        if (vault == null) return false;
+
+        //Decided from the vault, as another login may have upgraded it since
+        boolean legacy = vault.wrappedKey == null;
+        KeyRing vaultKeys = legacy ? keys : unwrapVaultKeys(vault);
+        if (vaultKeys == null || !sameKeys(vaultKeys, keys)) return false;
+
+        KeyRing newKeys = vaultKeys;
+        List<VaultEntry> entries = new ArrayList<>(vault.keys);
+        if (legacy) {
+            newKeys = new KeyRing(0, manager.encryptionService.generateDataKey(), null);
+            List<EncryptedData> encryptedValues = new ArrayList<>(entries.size());
+            for (VaultEntry entry : entries) {
+                encryptedValues.add(entry.encryptedKey);
+            }
+            List<String> values = manager.importExportService.decryptAll(encryptedValues, vaultKeys);
+            List<EncryptedData> reencryptedValues = manager.importExportService.encryptAll(values, newKeys, nonces);
+            for (int i = 0; i < entries.size(); i++) {
+                entries.set(i, new VaultEntry(entries.get(i).name, reencryptedValues.get(i)));
+            }
+        }
+
+        VaultFile rekeyed = new VaultFile(Base64.getEncoder().encodeToString(salt),
+            manager.encryptionService.getKdfAlgorithm(), manager.encryptionService.getIterations(), entries);
+        rekeyed.version = vault.version;
+        rekeyed.keyGeneration = newKeys.getGeneration();
+        rekeyed.wrappedKey = manager.encryptionService.wrapKey(newKeys.getCurrentKey(), newWrappingKey);
+        if (newKeys.isRotating()) {
+            rekeyed.rotationKey = manager.encryptionService.wrapKey(newKeys.getNextKey(), newWrappingKey);
+        }
+
+        saveVaultHeader(rekeyed);
+        keys = newKeys;
+        wrappingKey = newWrappingKey;
+        rememberHeaderKeys(rekeyed.keyGeneration, rekeyed.wrappedKey, rekeyed.rotationKey);
+        return true;
+    }
+
+    /**
+     * Unwraps the data keys stored in a non-legacy vault with this
+     * session's wrapping key.
+     *
+     * @return the keys, or null if they do not unwrap
+     */
+    private KeyRing unwrapVaultKeys(VaultFile vault) {
+        try {
+            SecretKey currentKey = manager.encryptionService.unwrapKey(vault.wrappedKey, wrappingKey);
+            SecretKey nextKey = vault.rotationKey == null
+                ? null : manager.encryptionService.unwrapKey(vault.rotationKey, wrappingKey);
+            return new KeyRing(vault.keyGeneration, currentKey, nextKey);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private static boolean sameKeys(KeyRing a, KeyRing b) {
+        return a.getGeneration() == b.getGeneration()
+            && sameKey(a.getCurrentKey(), b.getCurrentKey())
+            && sameKey(a.getNextKey(), b.getNextKey());
+    }
+
+    private static boolean sameKey(SecretKey a, SecretKey b) {
+        if (a == null || b == null) return a == b;
+        return MessageDigest.isEqual(a.getEncoded(), b.getEncoded());
+    }
+
+    /**
+     * Starts replacing the user's data key with a new one. The new key is
+     * stored in the vault straight away and used for everything written
+     * from then on; existing entries are re-encrypted under it on a
+     * background thread, a batch per save, while the vault stays readable
+     * and writable. Each entry records the generation of its key, so an
+     * interrupted rotation picks up where it stopped at the next login.
+     *
+     * @return true if started, false if the session is closed, the vault
+     * has no data key yet or a rotation is already in progress
+     */
+    public synchronized boolean rotateKey() throws Exception {
+        return updateVault(() -> {
+            if (keys == null) return false;
+
+            //Loading brings keys up to date with the header, or closes the
+            //session if they can no longer be unwrapped
+            VaultFile vault = loadVault();
+            if (vault == null || vault.wrappedKey == null) return false;
+            if (!matchesHeader(vault) || keys.isRotating()) return false;
+
+            SecretKey nextKey = manager.encryptionService.generateDataKey();
+            vault.rotationKey = manager.encryptionService.wrapKey(nextKey, wrappingKey);
+            saveVaultHeader(vault);
+
+            keys = keys.startRotation(nextKey);
+            unlockedRotationKey = vault.rotationKey;
+            keyError = null;
+            startRotationTask();
+            return true;
+        });
+    }
+
+    /**
+     * Carries on a rotation that was interrupted, if the vault has one.
+     */
+    synchronized void resumeKeyRotation() {
+        if (keys != null && keys.isRotating()) {
+            startRotationTask();
+        }
+    }
+
+    /**
+     * Returns true while the user's data key is being rotated.
+     */
+    public synchronized boolean isKeyRotationInProgress() {
+        return keys != null && keys.isRotating();
+    }
+
+    /**
+     * Waits for the background key rotation task to stop, either because
+     * the rotation is complete or because the session was closed.
+     *
+     * @return false if it is still running after timeoutMillis
+     */
+    public boolean awaitKeyRotation(long timeoutMillis) throws Exception {
+        Future<?> task;
+        synchronized (this) {
+            task = rotationTask;
+        }
+        if (task == null) return true;
+        try {
+            task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    private void startRotationTask() {
+        KeyRing rotatingKeys = keys;
+        NonceSequence rotationNonces = nonces;
+        rotationTask = manager.rotationExecutor().submit(() -> runRotation(rotatingKeys, rotationNonces));
+    }
+
+    private void runRotation(KeyRing rotatingKeys, NonceSequence rotationNonces) {
+        try {
+            while (true) {
+                try {
+                    if (!rotateBatch(rotatingKeys, rotationNonces)) break;
+                } catch (VaultConflictException e) {
+                    //Another writer saved between the two halves of the
+                    //batch; the next batch is collected from its version
+                }
+                long pause = manager.getRotationPauseMillis();
+                if (pause > 0) {
+                    Thread.sleep(pause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            //The vault keeps its progress; the rotation resumes at next login
+            LOG.log(Level.WARNING, "Key rotation of " + username + "'s vault stopped", e);
+            synchronized (this) {
+                keyError = e;
+            }
+        }
+    }
+
+    /**
+     * Re-encrypts the next batch of entries still under the old key. The
+     * decryption and encryption run without holding the lock, so readers
+     * and writers only wait for the save. An entry changed in the meantime
+     * is left alone, since its new value is already under the new key. Once
+     * no old entries remain, the new key replaces the old one in the vault.
+     *
+     * @return true if there may be more batches
+     */
+    private boolean rotateBatch(KeyRing rotatingKeys, NonceSequence rotationNonces) throws Exception {
+        int batchSize = manager.getRotationBatchSize();
+        List<VaultEntry> batch = new ArrayList<>();
+        synchronized (this) {
+            //Checked after loading, which may have replaced keys
+            VaultFile vault = loadVault();
+            if (vault == null || !isActiveRotation(rotatingKeys)) return false;
+
+            for (VaultEntry entry : vault.keys) {
+                if (entry.encryptedKey.getKeyGeneration() == rotatingKeys.getGeneration()) {
+                    batch.add(entry);
+                    if (batch.size() == batchSize) break;
+                }
+            }
+            if (batch.isEmpty()) {
+                finishRotation(vault, rotatingKeys);
+                return false;
+            }
+        }
+
+        List<VaultEntry> rotated = new ArrayList<>(batch.size());
+        for (VaultEntry entry : batch) {
+            String value = manager.encryptionService.decrypt(entry.encryptedKey, rotatingKeys.getCurrentKey());
+            EncryptedData encryptedValue = manager.encryptionService.encrypt(value, rotatingKeys.getNextKey(), rotationNonces)
+                .withKeyGeneration(rotatingKeys.getGeneration() + 1);
+            rotated.add(new VaultEntry(entry.name, encryptedValue));
+        }
+
+        synchronized (this) {
+            VaultFile vault = loadVault();
+            if (vault == null || !isActiveRotation(rotatingKeys)) return false;
+
+            List<VaultChange> changes = new ArrayList<>(rotated.size());
+            for (int i = 0; i < batch.size(); i++) {
+                VaultEntry current = vault.keys.get(batch.get(i).name);
+                if (current != null && sameCiphertext(current.encryptedKey, batch.get(i).encryptedKey)) {
+                    changes.add(VaultChange.put(rotated.get(i)));
+                }
+            }
+            applyAndSaveVault(vault, changes);
+        }
+        return true;
+    }
+
+    private boolean isActiveRotation(KeyRing rotatingKeys) {
+        return keys != null && keys.getNextKey() == rotatingKeys.getNextKey();
+    }
+
+    private static boolean sameCiphertext(EncryptedData a, EncryptedData b) {
+        return a.getKeyGeneration() == b.getKeyGeneration()
+            && Arrays.equals(a.getIvBytes(), b.getIvBytes())
+            && Arrays.equals(a.getCiphertextBytes(), b.getCiphertextBytes());
+    }
+
+    /**
+     * Makes the next key the vault's data key once every entry uses it.
+     * Nothing is written unless the header still holds the keys being
+     * rotated.
+     */
+    private void finishRotation(VaultFile vault, KeyRing rotatingKeys) throws Exception {
+        if (!matchesHeader(vault)) return;
+
+        vault.keyGeneration = rotatingKeys.getGeneration() + 1;
+        vault.wrappedKey = manager.encryptionService.wrapKey(rotatingKeys.getNextKey(), wrappingKey);
+        vault.rotationKey = null;
+        saveVaultHeader(vault);
+        keys = rotatingKeys.finishRotation();
+        rememberHeaderKeys(vault.keyGeneration, vault.wrappedKey, null);
+    }
+
+    private void rememberHeaderKeys(int generation, EncryptedData wrappedKey, EncryptedData rotationKey) {
+        unlockedGeneration = generation;
+        unlockedWrappedKey = wrappedKey;
+        unlockedRotationKey = rotationKey;
+    }
+
+    private boolean matchesHeader(VaultFile vault) {
+        return matchesHeader(vault.keyGeneration, vault.wrappedKey, vault.rotationKey);
+    }
+
+    private boolean matchesHeader(int generation, EncryptedData wrappedKey, EncryptedData rotationKey) {
+        return generation == unlockedGeneration
+            && sameKeyData(wrappedKey, unlockedWrappedKey)
+            && sameKeyData(rotationKey, unlockedRotationKey);
+    }
+
+    private static boolean sameKeyData(EncryptedData a, EncryptedData b) {
+        if (a == null || b == null) return a == b;
+        return Arrays.equals(a.getIvBytes(), b.getIvBytes())
+            && Arrays.equals(a.getCiphertextBytes(), b.getCiphertextBytes());
+    }
+
+    /**
+     * Checks the key fields of a header just read from disk against the
+     * ones keys came from. If another session has started or finished a
+     * rotation, the header's keys are unwrapped with this session's
+     * wrapping key and replace keys. If they were re-wrapped under another
+     * password or salt that fails, and the session is closed rather than
+     * left writing with keys the vault no longer has.
+     *
+     * @return false if the session is closed
+     */
+    private boolean syncKeys(int generation, EncryptedData wrappedKey, EncryptedData rotationKey) {
+        if (keys == null) return false;
+        if (matchesHeader(generation, wrappedKey, rotationKey)) return true;
+
+        try {
+            if (wrappedKey == null) throw new GeneralSecurityException("Vault has no wrapped data key");
+            SecretKey currentKey = manager.encryptionService.unwrapKey(wrappedKey, wrappingKey);
+            SecretKey nextKey = rotationKey == null ? null : manager.encryptionService.unwrapKey(rotationKey, wrappingKey);
+            keys = new KeyRing(generation, currentKey, nextKey);
+            rememberHeaderKeys(generation, wrappedKey, rotationKey);
+            return true;
+        } catch (GeneralSecurityException e) {
+            LOG.info("Keys of " + username + "'s vault were re-wrapped by another session; closing this one");
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Returns a read-only view of the vault, reusing the cached view unless
+     * the vault file has been written since it was read.
+     *
+     * @return MappedVault, or null if the vault does not exist
+     */
+    private MappedVault readVault() throws IOException {
+        VaultStamp stamp = manager.storageService.getVaultStamp(username);
+        if (stamp == null) {
+            cacheVault(null, null);
+            return null;
+        }
+        if (cachedView == null || !stamp.equals(cachedVaultStamp)) {
+            MappedVault view = manager.storageService.mapVault(username);
+            if (view != null && !syncKeys(view.getKeyGeneration(), view.getWrappedKey(), view.getRotationKey())) {
+                return null;
+            }
+            cacheView(view, stamp);
+        }
+        return cachedView;
+    }
+
+    /**
+     * Returns the fully decoded vault for modification, reusing the cached
+     * copy unless the vault file has been written since it was read.
+     *
+     * @return VaultFile, or null if the vault does not exist
+     */
+    private VaultFile loadVault() throws IOException {
+        VaultStamp stamp = manager.storageService.getVaultStamp(username);
+        if (stamp == null) {
+            cacheVault(null, null);
+            return null;
+        }
+        if (cachedVault == null || !stamp.equals(cachedVaultStamp)) {
+            VaultFile vault = manager.storageService.loadVault(username);
+            if (vault != null && !syncKeys(vault.keyGeneration, vault.wrappedKey, vault.rotationKey)) {
+                return null;
+            }
+            cacheVault(vault, stamp);
+        }
+        return cachedVault;
+    }
+
+    /**
+     * Persists changes already applied to the vault and keeps the vault as
+     * the cached copy. The save only goes ahead if nobody else has saved
+     * since the vault was loaded. If it fails the cache is dropped, since
+     * the in-memory vault no longer matches the file.
+     *
+     * @throws VaultConflictException if someone else saved in between
+     */
+    private void saveVault(VaultFile vault, List<VaultChange> changes) throws IOException {
+        try {
+            manager.storageService.saveChanges(username, vault, changes, vault.version);
+        } catch (IOException e) {
+            cacheVault(null, null);
+            throw e;
+        }
+        cacheVault(vault, manager.storageService.getVaultStamp(username));
+    }
+
+    /**
+     * Saves the whole vault, which its change log cannot express when the
+     * header has changed. Checked like saveVault.
+     */
+    private void saveVaultHeader(VaultFile vault) throws IOException {
+        try {
+            manager.storageService.saveVault(username, vault, vault.version);
+        } catch (IOException e) {
+            cacheVault(null, null);
+            throw e;
+        }
+        cacheVault(vault, manager.storageService.getVaultStamp(username));
+    }
+
+    /**
+     * Runs a load-modify-save of the vault, running it again from a fresh
+     * load whenever its save loses to another writer.
+     */
+    private <T> T updateVault(Callable<T> update) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return update.call();
+            } catch (VaultConflictException e) {
+                if (attempt >= MAX_SAVE_ATTEMPTS) throw e;
+            }
+        }
+    }
+
+    private void cacheVault(VaultFile vault, VaultStamp stamp) {
+        cachedVault = vault;
+        cachedView = vault == null ? null : MappedVault.ofVaultFile(vault);
+        cachedVaultStamp = stamp;
+    }
+
+    private void cacheView(MappedVault view, VaultStamp stamp) {
+        cachedVault = null;
+        cachedView = view;
+        cachedVaultStamp = stamp;
+    }
+
+    /**
+     * Returns a list of vault key names
+     *
+     * @return List<String>
+     */
+    public synchronized List<String> getVaultKeyNames() throws Exception {
+        List<String> keyNames = new ArrayList<>();
+        if (keys == null) return keyNames;
+
+        MappedVault vault = readVault();
+        if (vault == null) return keyNames;
+
+        for (String name : vault.names()) {
+            if (!name.equals(AUTH_KEY_NAME)) {
+                keyNames.add(name);
+            }
+        }
+
+        return keyNames;
+    }
+
+    /**
+     * Returns the decrypted value of a key in the vault
+     *
+     * @return String
+     */
+    public synchronized String getKeyValue(String keyName) throws Exception {
+        if (keyName.equals(AUTH_KEY_NAME)) return null;
+        if (keys == null) return null;
+
+        MappedVault vault = readVault();
+        if (vault == null) return null;
+
+        EncryptedData encryptedValue = vault.get(keyName);
+        if (encryptedValue == null) return null;
+
+        try {
+            String decryptedValue = manager.encryptionService.decrypt(encryptedValue, keys.keyFor(encryptedValue));
+            return decryptedValue;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts the UTF-8 value of a key into a caller-provided buffer, so
+     * the plaintext never becomes a String and the caller can zero the
+     * buffer once done with it. The buffer needs room for the value's UTF-8
+     * bytes, at most four per character.
+     *
+     * @return the number of bytes written, or -1 if there is no such key
+     * @throws ShortBufferException if the buffer is too small
+     */
+    public synchronized int getKeyValue(String keyName, ByteBuffer out) throws Exception {
+        if (keyName.equals(AUTH_KEY_NAME)) return -1;
+        if (keys == null) return -1;
+
+        MappedVault vault = readVault();
+        if (vault == null) return -1;
+
+        EncryptedData encryptedValue = vault.get(keyName);
+        if (encryptedValue == null) return -1;
+
+        try {
+            return manager.encryptionService.decrypt(encryptedValue, keys.keyFor(encryptedValue), out);
+        } catch (ShortBufferException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            return -1;
+        }
+    }
+
+    private EncryptedData encryptValue(String value) throws GeneralSecurityException {
+        return manager.encryptionService.encrypt(value, keys.getWriteKey(), nonces)
+            .withKeyGeneration(keys.getWriteGeneration());
+    }
+
+    /**
+     * Validates key name
+     *
+     * @return true if valid, false otherwise
+     */
+    private boolean isValidKeyName(String keyName) {
+        if (keyName == null) return false;
+        if (keyName.equals(AUTH_KEY_NAME)) return false;
+        if (keyName.length() < MIN_KEY_NAME_LENGTH || keyName.length() > MAX_KEY_NAME_LENGTH) return false;
+        if (!keyName.matches(KEY_NAME_PATTERN)) return false;
+        if (keyName.trim().isEmpty()) return false;
+        return true;
+    }
+
+    /**
+     * Validates key value
+     *
+     * @return true if valid, false otherwise
+     */
+    private boolean isValidKeyValue(String keyValue) {
+        if (keyValue == null) return false;
+        if (keyValue.length() < MIN_KEY_VALUE_LENGTH || keyValue.length() > MAX_KEY_VALUE_LENGTH) return false;
+        if (keyValue.trim().isEmpty()) return false;
+        return true;
+    }
+
+    /**
+     * Adds a new key to the vault
+     *
+     * @return true if added, false if error
+     */
+    public synchronized boolean addKey(String name, String value) throws Exception {
+        return updateVault(() -> {
+            if (keys == null) return false;
+            if(!isValidKeyName(name) || !isValidKeyValue(value)) return false;
+
+            VaultFile vault = loadVault();
+            if (vault == null) return false;
+
+            if (vault.keys.contains(name)) return false; //Already exists
+
+            EncryptedData encryptedValue = encryptValue(value);
+            VaultEntry newVaultEntry = new VaultEntry(name, encryptedValue);
+            vault.keys.add(newVaultEntry);
+
+            saveVault(vault, List.of(VaultChange.put(newVaultEntry)));
+            return true;
+        });
+    }
+
+    /**
+     * Edits an existing key in the vault
+     *
+     * @return true if edited, false if error
+     */
+    public synchronized boolean editKey(String name, String newValue) throws Exception {
+        return updateVault(() -> {
+            if (keys == null) return false;
+            if(!isValidKeyName(name) || !isValidKeyValue(newValue)) return false;
+
+            VaultFile vault = loadVault();
+            if (vault == null) return false;
+
+            if (!vault.keys.contains(name)) return false;
+
+            EncryptedData encryptedValue = encryptValue(newValue);
+            VaultEntry editedVaultEntry = new VaultEntry(name, encryptedValue);
+            vault.keys.put(editedVaultEntry);
+            saveVault(vault, List.of(VaultChange.put(editedVaultEntry)));
+            return true;
+        });
+    }
+
+    /**
+     * Deletes a key by name from the vault.
+     *
+     * @return true if deleted, false if error.
+     */
+    public synchronized boolean deleteKey(String name) throws Exception {
+        return updateVault(() -> {
+            if (keys == null) return false;
+            if (!isValidKeyName(name)) return false;
+
+            VaultFile vault = loadVault();
+            if (vault == null) return false;
+
+            if (vault.keys.remove(name) == null) return false;
+
+            saveVault(vault, List.of(VaultChange.delete(name)));
+            return true;
+        });
+    }
+
+    /**
+     * Adds several new keys to the vault with one load and one save. Each
+     * key is validated and checked for duplicates like addKey.
+     *
+     * @return whether each key was added, in the order given
+     */
+    public synchronized Map<String, Boolean> addKeys(Map<String, String> newKeys) throws Exception {
+        return updateVault(() -> {
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            VaultFile vault = keys == null ? null : loadVault();
+
+            List<VaultChange> changes = new ArrayList<>();
+            for (Map.Entry<String, String> key : newKeys.entrySet()) {
+                String name = key.getKey();
+                boolean valid = vault != null
+                    && isValidKeyName(name)
+                    && isValidKeyValue(key.getValue())
+                    && !vault.keys.contains(name);
+                if (valid) {
+                    EncryptedData encryptedValue = encryptValue(key.getValue());
+                    changes.add(VaultChange.put(new VaultEntry(name, encryptedValue)));
+                }
+                results.put(name, valid);
+            }
+
+            applyAndSaveVault(vault, changes);
+            return results;
+        });
+    }
+
+    /**
+     * Edits several existing keys in the vault with one load and one save.
+     * Each key is validated like editKey.
+     *
+     * @return whether each key was edited, in the order given
+     */
+    public synchronized Map<String, Boolean> editKeys(Map<String, String> editedKeys) throws Exception {
+        return updateVault(() -> {
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            VaultFile vault = keys == null ? null : loadVault();
+
+            List<VaultChange> changes = new ArrayList<>();
+            for (Map.Entry<String, String> key : editedKeys.entrySet()) {
+                String name = key.getKey();
+                boolean valid = vault != null
+                    && isValidKeyName(name)
+                    && isValidKeyValue(key.getValue())
+                    && vault.keys.contains(name);
+                if (valid) {
+                    EncryptedData encryptedValue = encryptValue(key.getValue());
+                    changes.add(VaultChange.put(new VaultEntry(name, encryptedValue)));
+                }
+                results.put(name, valid);
+            }
+
+            applyAndSaveVault(vault, changes);
+            return results;
+        });
+    }
+
+    /**
+     * Deletes several keys from the vault with one load and one save. A
+     * name given twice is only deleted once.
+     *
+     * @return whether each key was deleted, in the order given
+     */
+    public synchronized Map<String, Boolean> deleteKeys(Collection<String> names) throws Exception {
+        return updateVault(() -> {
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            VaultFile vault = keys == null ? null : loadVault();
+
+            List<VaultChange> changes = new ArrayList<>();
+            Set<String> deleted = new HashSet<>();
+            for (String name : names) {
+                boolean valid = vault != null
+                    && isValidKeyName(name)
+                    && vault.keys.contains(name)
+                    && deleted.add(name);
+                if (valid) {
+                    changes.add(VaultChange.delete(name));
+                }
+                results.putIfAbsent(name, valid);
+            }
+
+            applyAndSaveVault(vault, changes);
+            return results;
+        });
+    }
+
+    /**
+     * Imports keys from CSV or JSON into the vault. The input is streamed a
+     * chunk at a time and each chunk is encrypted in parallel, so only one
+     * chunk of plaintext is held in memory; the whole import is saved once
+     * at the end. Keys are validated like addKey, and names that already
+     * exist (or repeat within the input) are skipped.
+     *
+     * @return whether each key was imported, in input order
+     */
+    public synchronized Map<String, Boolean> importKeys(Reader in, ImportExportService.Format format) throws Exception {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        if (keys == null) return results;
+
+        VaultFile vault = loadVault();
+        if (vault == null) return results;
+
+        ImportExportService.RecordReader reader = manager.importExportService.openReader(in, format);
+        KeyRing encryptedWith = keys;
+        List<VaultChange> changes = new ArrayList<>();
+        Set<String> imported = new HashSet<>();
+        List<String[]> chunk;
+        while (!(chunk = reader.nextChunk(ImportExportService.CHUNK_SIZE)).isEmpty()) {
+            List<String> names = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            for (String[] record : chunk) {
+                String name = record[0];
+                boolean valid = isValidKeyName(name)
+                    && isValidKeyValue(record[1])
+                    && !vault.keys.contains(name)
+                    && imported.add(name);
+                if (valid) {
+                    names.add(name);
+                    values.add(record[1]);
+                }
+                results.putIfAbsent(name, valid);
+            }
+
+            List<EncryptedData> encryptedValues = manager.importExportService.encryptAll(values, keys, nonces);
+            for (int i = 0; i < names.size(); i++) {
+                changes.add(VaultChange.put(new VaultEntry(names.get(i), encryptedValues.get(i))));
+            }
+        }
+
+        //The input cannot be read twice, so on a conflict the encrypted
+        //entries are applied to the new version of the vault instead,
+        //less any names that have been added there meanwhile
+        for (int attempt = 1; ; attempt++) {
+            try {
+                applyAndSaveVault(vault, changes);
+                return results;
+            } catch (VaultConflictException e) {
+                if (attempt >= MAX_SAVE_ATTEMPTS) throw e;
+            }
+            vault = loadVault();
+            if (vault == null) {
+                //The session was closed; nothing was imported
+                for (VaultChange change : changes) {
+                    results.put(change.getName(), false);
+                }
+                return results;
+            }
+            Iterator<VaultChange> pending = changes.iterator();
+            while (pending.hasNext()) {
+                String name = pending.next().getName();
+                if (vault.keys.contains(name)) {
+                    results.put(name, false);
+                    pending.remove();
+                }
+            }
+
+            //Loading may have picked up keys another session rotated, which
+            //need not include the key the entries were encrypted with
+            if (keys != encryptedWith) {
+                changes = reencryptChanges(changes, encryptedWith);
+                encryptedWith = keys;
+            }
+        }
+    }
+
+    /**
+     * Re-encrypts pending puts, encrypted with oldKeys, under the current
+     * keys. It goes a chunk at a time, so as with the import itself only
+     * one chunk of plaintext is held at once.
+     */
+    private List<VaultChange> reencryptChanges(List<VaultChange> changes, KeyRing oldKeys) throws GeneralSecurityException {
+        List<VaultChange> reencrypted = new ArrayList<>(changes.size());
+        for (int start = 0; start < changes.size(); start += ImportExportService.CHUNK_SIZE) {
+            List<VaultChange> chunk = changes.subList(start, Math.min(start + ImportExportService.CHUNK_SIZE, changes.size()));
+            List<EncryptedData> encryptedValues = new ArrayList<>(chunk.size());
+            for (VaultChange change : chunk) {
+                encryptedValues.add(change.getEncryptedKey());
+            }
+            List<String> values = manager.importExportService.decryptAll(encryptedValues, oldKeys);
+            List<EncryptedData> reencryptedValues = manager.importExportService.encryptAll(values, keys, nonces);
+            for (int i = 0; i < chunk.size(); i++) {
+                reencrypted.add(VaultChange.put(new VaultEntry(chunk.get(i).getName(), reencryptedValues.get(i))));
+            }
+        }
+        return reencrypted;
+    }
+
+    /**
+     * Exports the keys as CSV or JSON, writing entries as streamDecrypted
+     * produces them.
+     *
+     * @return the number of keys written
+     */
+    public synchronized int exportKeys(Writer out, ImportExportService.Format format) throws Exception {
+        if (keys == null) return 0;
+        if (readVault() == null) return 0;
+
+        ImportExportService.RecordWriter writer = manager.importExportService.openWriter(out, format);
+        int count = 0;
+        try (Stream<Map.Entry<String, String>> entries = streamDecrypted()) {
+            Iterator<Map.Entry<String, String>> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, String> entry = iterator.next();
+                writer.write(entry.getKey(), entry.getValue());
+                count++;
+            }
+        }
+        writer.finish();
+        return count;
+    }
+
+    /**
+     * Streams the keys with their decrypted values, in vault order. The
+     * vault is read once, as it is when the stream is created. Values are
+     * decrypted a chunk at a time, each chunk in parallel across the common
+     * fork-join pool, and only when the stream reaches it. So at most one
+     * chunk of plaintext is held at once, whatever the vault size.
+     *
+     * If an entry cannot be read or decrypted the stream throws
+     * UncheckedIOException.
+     *
+     * @return the entries, or an empty stream if the session is closed
+     */
+    public synchronized Stream<Map.Entry<String, String>> streamDecrypted() throws Exception {
+        if (keys == null) return Stream.empty();
+
+        MappedVault view = readVault();
+        if (view == null) return Stream.empty();
+
+        //Chunks are decrypted after the lock is released, so they must not
+        //read through to the cached vault, which later writes modify
+        MappedVault vault = view.snapshot();
+        List<String> names = vault.names();
+        names.remove(AUTH_KEY_NAME);
+        KeyRing streamKeys = keys;
+
+        Iterator<Map.Entry<String, String>> iterator = new Iterator<>() {
+            private int nextChunk = 0;
+            private Iterator<Map.Entry<String, String>> chunk = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!chunk.hasNext() && nextChunk < names.size()) {
+                    int end = Math.min(nextChunk + ImportExportService.CHUNK_SIZE, names.size());
+                    chunk = decryptChunk(vault, names.subList(nextChunk, end), streamKeys).iterator();
+                    nextChunk = end;
+                }
+                return chunk.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return chunk.next();
+            }
+        };
+        int characteristics = Spliterator.ORDERED | Spliterator.SIZED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+        return StreamSupport.stream(Spliterators.spliterator(iterator, names.size(), characteristics), false);
+    }
+
+    /**
+     * Decrypts all of the keys, in parallel, with one read of the vault.
+     * For large vaults prefer streamDecrypted, which keeps memory flat.
+     *
+     * @return key name -> value in vault order, empty if the session is closed
+     */
+    public Map<String, String> decryptAll() throws Exception {
+        Map<String, String> values = new LinkedHashMap<>();
+        try (Stream<Map.Entry<String, String>> entries = streamDecrypted()) {
+            entries.forEachOrdered(entry -> values.put(entry.getKey(), entry.getValue()));
+        }
+        return values;
+    }
+
+    private List<Map.Entry<String, String>> decryptChunk(MappedVault vault, List<String> names, KeyRing chunkKeys) {
+        try {
+            List<EncryptedData> encryptedValues = new ArrayList<>(names.size());
+            for (String name : names) {
+                encryptedValues.add(vault.get(name));
+            }
+            List<String> values = manager.importExportService.decryptAll(encryptedValues, chunkKeys);
+
+            List<Map.Entry<String, String>> entries = new ArrayList<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(names.get(i), values.get(i)));
+            }
+            return entries;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new UncheckedIOException(new IOException("Could not decrypt vault entries", e));
+        }
+    }
+
+    /**
+     * Applies a batch of changes to the vault and saves them together.
+     * Nothing is applied until every change has been prepared, so a failure
+     * while encrypting leaves the vault untouched.
+     */
+    private void applyAndSaveVault(VaultFile vault, List<VaultChange> changes) throws IOException {
+        if (vault == null || changes.isEmpty()) return;
+
+        for (VaultChange change : changes) {
+            change.applyTo(vault.keys);
+        }
+        saveVault(vault, changes);
+    }
+}
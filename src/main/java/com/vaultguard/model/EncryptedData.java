@@ -1,19 +1,92 @@
 package com.vaultguard.model;
 
+import java.util.Base64;
+
+/**
+ * An IV and ciphertext pair. It is held either as the Base64 strings found
+ * in JSON vaults or as the raw bytes produced by encryption and read from
+ * binary vaults, and converted only when the other form is asked for.
+ *
+ * The key generation says which of the vault's data keys encrypted it; it
+ * only changes when the vault's key is rotated.
+ */
 public class EncryptedData {
-    private String iv;
-    private String ciphertext;
+    private final String iv;
+    private final String ciphertext;
+    private final byte[] ivBytes;
+    private final byte[] ciphertextBytes;
+
+    //Written by VaultTypeAdapters only when non-zero, so JSON vaults that
+    //never rotated their key keep their original shape
+    private final transient int keyGeneration;
 
     public EncryptedData(String iv, String ciphertext) {
+        this(iv, ciphertext, null, null, 0);
+    }
+
+    /**
+     * Wraps raw bytes without copying; the arrays must not be modified
+     * afterwards.
+     */
+    public EncryptedData(byte[] iv, byte[] ciphertext) {
+        this(null, null, iv, ciphertext, 0);
+    }
+
+    private EncryptedData(String iv, String ciphertext, byte[] ivBytes, byte[] ciphertextBytes, int keyGeneration) {
         this.iv = iv;
         this.ciphertext = ciphertext;
+        this.ivBytes = ivBytes;
+        this.ciphertextBytes = ciphertextBytes;
+        this.keyGeneration = keyGeneration;
+    }
+
+    /**
+     * Returns this data tagged with the given key generation.
+     */
+    public EncryptedData withKeyGeneration(int keyGeneration) {
+        if (keyGeneration == this.keyGeneration) {
+            return this;
+        }
+        return new EncryptedData(iv, ciphertext, ivBytes, ciphertextBytes, keyGeneration);
+    }
+
+    public int getKeyGeneration() {
+        return keyGeneration;
     }
 
     public String getIv() {
-        return iv;
+        return ivBytes != null ? Base64.getEncoder().encodeToString(ivBytes) : iv;
     }
 
     public String getCiphertext() {
-        return ciphertext;
+        return ciphertextBytes != null ? Base64.getEncoder().encodeToString(ciphertextBytes) : ciphertext;
+    }
+
+    /**
+     * Returns the raw IV. When the data is byte-backed this is the internal
+     * array, which must not be modified.
+     *
+     * @throws IllegalArgumentException if the IV string is not valid Base64
+     */
+    public byte[] getIvBytes() {
+        return ivBytes != null ? ivBytes : iv == null ? null : Base64.getDecoder().decode(iv);
+    }
+
+    /**
+     * Returns the raw ciphertext. When the data is byte-backed this is the
+     * internal array, which must not be modified.
+     *
+     * @throws IllegalArgumentException if the ciphertext string is not valid Base64
+     */
+    public byte[] getCiphertextBytes() {
+        return ciphertextBytes != null ? ciphertextBytes
+            : ciphertext == null ? null : Base64.getDecoder().decode(ciphertext);
+    }
+
+    /**
+     * Returns true if the data is held as raw bytes.
+     */
+    public boolean isRaw() {
+        return ivBytes != null || ciphertextBytes != null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package com.vaultguard.model;
+
+/**
+ * A single mutation of a vault: an entry was added or replaced, or an
+ * entry was deleted. Changes are what the log-structured storage mode
+ * appends to disk instead of rewriting the whole vault.
+ */
+public class VaultChange {
+    public enum Type { PUT, DELETE }
+
+    private final Type type;
+    private final String name;
+    private final EncryptedData encryptedKey;
+
+    private VaultChange(Type type, String name, EncryptedData encryptedKey) {
+        this.type = type;
+        this.name = name;
+        this.encryptedKey = encryptedKey;
+    }
+
+    public static VaultChange put(VaultEntry entry) {
+        return new VaultChange(Type.PUT, entry.name, entry.encryptedKey);
+    }
+
+    public static VaultChange delete(String name) {
+        return new VaultChange(Type.DELETE, name, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public EncryptedData getEncryptedKey() {
+        return encryptedKey;
+    }
+
+    /**
+     * Applies this change to the given entries.
+     */
+    public void applyTo(VaultEntries entries) {
+        if (type == Type.PUT) {
+            entries.put(new VaultEntry(name, encryptedKey));
+        } else {
+            entries.remove(name);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.vaultguard.model;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The entries of a vault, indexed by name and kept in insertion order.
+ * Lookups, duplicate checks, replacements and removals by name are O(1).
+ * Iterating yields the entries in the order they were added, so the
+ * collection serializes to the same JSON array as a plain list.
+ */
+public class VaultEntries extends AbstractCollection<VaultEntry> {
+    private final LinkedHashMap<String, VaultEntry> index = new LinkedHashMap<>();
+
+    public VaultEntries() {
+    }
+
+    public VaultEntries(Collection<VaultEntry> entries) {
+        if (entries != null) {
+            addAll(entries);
+        }
+    }
+
+    /**
+     * Returns the entry with the given name, or null if there is none.
+     */
+    public VaultEntry get(String name) {
+        return index.get(name);
+    }
+
+    public boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * Adds an entry unless one with the same name already exists.
+     *
+     * @return true if added, false if the name is taken
+     */
+    @Override
+    public boolean add(VaultEntry entry) {
+        return index.putIfAbsent(entry.name, entry) == null;
+    }
+
+    /**
+     * Replaces the entry with the same name, keeping its position,
+     * or appends the entry if the name is new.
+     *
+     * @return the replaced entry, or null if the name was new
+     */
+    public VaultEntry put(VaultEntry entry) {
+        return index.put(entry.name, entry);
+    }
+
+    /**
+     * Removes the entry with the given name.
+     *
+     * @return the removed entry, or null if there was none
+     */
+    public VaultEntry remove(String name) {
+        return index.remove(name);
+    }
+
+    /**
+     * Returns the entry names in insertion order.
+     */
+    public List<String> names() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    @Override
+    public Iterator<VaultEntry> iterator() {
+        return index.values().iterator();
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void clear() {
+        index.clear();
+    }
+}
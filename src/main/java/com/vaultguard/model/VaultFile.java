@@ -1,14 +1,41 @@
 package com.vaultguard.model;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class VaultFile {
+
+    //Key derivation used by vaults written before it was stored per vault
+    public static final String LEGACY_KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+    public static final int LEGACY_KDF_ITERATIONS = 100_000;
+
     public String salt;
-    public List<VaultEntry> keys = new ArrayList<>();
+    public String kdfAlgorithm = LEGACY_KDF_ALGORITHM;
+    public int kdfIterations = LEGACY_KDF_ITERATIONS;
+
+    //Version of the vault this copy was read at. Every save advances it,
+    //and a save that expects an older version is rejected.
+    public long version = 0;
+
+    //Generation of the data key in wrappedKey
+    public int keyGeneration = 0;
+
+    //Key that encrypts the entries, wrapped by the password-derived key.
+    //Null for legacy vaults whose entries use the password-derived key.
+    public EncryptedData wrappedKey;
+
+    //While the data key is being rotated, the next generation's key,
+    //wrapped the same way; entries move to it in batches
+    public EncryptedData rotationKey;
+    public VaultEntries keys = new VaultEntries();
 
     public VaultFile(String salt, List<VaultEntry> keys) {
         this.salt = salt;
-        this.keys = keys;
+        this.keys = new VaultEntries(keys);
+    }
+
+    public VaultFile(String salt, String kdfAlgorithm, int kdfIterations, List<VaultEntry> keys) {
+        this(salt, keys);
+        this.kdfAlgorithm = kdfAlgorithm;
+        this.kdfIterations = kdfIterations;
     }
 }
@@ -0,0 +1,88 @@
+package com.vaultguard.model;
+
+/**
+ * Everything needed to unlock a vault, without its entries: the salt and
+ * KDF parameters to derive the password key, and the wrapped data key that
+ * verifies it. Reading a header touches only the start of the vault file,
+ * so it costs the same however many entries the vault holds.
+ */
+public class VaultHeader {
+
+    //Format version reported for JSON vaults, which have none
+    public static final int JSON_FORMAT_VERSION = 0;
+
+    private final int formatVersion;
+    private final String salt;
+    private final String kdfAlgorithm;
+    private final int kdfIterations;
+    private final long version;
+    private final int keyGeneration;
+    private final EncryptedData wrappedKey;
+    private final EncryptedData rotationKey;
+    private final int entryCount;
+
+    public VaultHeader(int formatVersion, String salt, String kdfAlgorithm, int kdfIterations, long version,
+                       int keyGeneration, EncryptedData wrappedKey, EncryptedData rotationKey, int entryCount) {
+        this.formatVersion = formatVersion;
+        this.salt = salt;
+        this.kdfAlgorithm = kdfAlgorithm;
+        this.kdfIterations = kdfIterations;
+        this.version = version;
+        this.keyGeneration = keyGeneration;
+        this.wrappedKey = wrappedKey;
+        this.rotationKey = rotationKey;
+        this.entryCount = entryCount;
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public String getSalt() {
+        return salt;
+    }
+
+    public String getKdfAlgorithm() {
+        return kdfAlgorithm;
+    }
+
+    public int getKdfIterations() {
+        return kdfIterations;
+    }
+
+    /**
+     * Returns the vault's version as of its last snapshot, not counting
+     * changes in the log.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getKeyGeneration() {
+        return keyGeneration;
+    }
+
+    /**
+     * Returns the wrapped data key, which doubles as the password verifier,
+     * or null for a legacy vault.
+     */
+    public EncryptedData getWrappedKey() {
+        return wrappedKey;
+    }
+
+    /**
+     * Returns the wrapped key of the next generation if a key rotation is
+     * in progress, or null.
+     */
+    public EncryptedData getRotationKey() {
+        return rotationKey;
+    }
+
+    /**
+     * Returns the number of entries in the last snapshot, not counting
+     * changes in the log, or -1 if the header does not record it.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+}
@@ -0,0 +1,57 @@
+package com.vaultguard.model;
+
+import java.util.Objects;
+
+/**
+ * Identifies one on-disk version of a vault. Two stamps are equal only if
+ * neither the vault file nor its change log (if any) has been written to
+ * in between.
+ */
+public class VaultStamp {
+    private final long lastModifiedNanos;
+    private final long size;
+    private final Object fileKey;
+    private final VaultStamp logStamp;
+
+    public VaultStamp(long lastModifiedNanos, long size, Object fileKey) {
+        this(lastModifiedNanos, size, fileKey, null);
+    }
+
+    private VaultStamp(long lastModifiedNanos, long size, Object fileKey, VaultStamp logStamp) {
+        this.lastModifiedNanos = lastModifiedNanos;
+        this.size = size;
+        this.fileKey = fileKey;
+        this.logStamp = logStamp;
+    }
+
+    /**
+     * Returns a stamp that also covers the vault's change log.
+     */
+    public VaultStamp withLog(VaultStamp logStamp) {
+        return new VaultStamp(lastModifiedNanos, size, fileKey, logStamp);
+    }
+
+    public long getLastModifiedNanos() {
+        return lastModifiedNanos;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof VaultStamp)) return false;
+        VaultStamp other = (VaultStamp) o;
+        return lastModifiedNanos == other.lastModifiedNanos
+            && size == other.size
+            && Objects.equals(fileKey, other.fileKey)
+            && Objects.equals(logStamp, other.logStamp);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(lastModifiedNanos, size, fileKey, logStamp);
+    }
+}
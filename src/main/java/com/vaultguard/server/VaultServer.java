@@ -0,0 +1,603 @@
+package com.vaultguard.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vaultguard.controller.AsyncPasswordManager;
+import com.vaultguard.controller.KdfRejectedException;
+import com.vaultguard.controller.KdfScheduler;
+import com.vaultguard.controller.PasswordManager;
+import com.vaultguard.controller.VaultSession;
+import com.vaultguard.services.EncryptionService;
+
+/**
+ * Serves PasswordManager over a local JSON API, so that other programs can
+ * fetch secrets without driving the interactive CLI. Built on the JDK's
+ * HttpServer. Its threads only parse requests: the work goes to an
+ * AsyncPasswordManager, so logins run on its key derivation pool and
+ * lookups on its I/O pool, and a burst of logins cannot hold up lookups.
+ * Key derivations are admitted by a KdfScheduler, queued per client
+ * address. Local clients all share the loopback address, so theirs are
+ * queued per username, and within a username per connection, each
+ * connection with its own cap. When it turns a login or registration
+ * away, the server answers 503 with a Retry-After header.
+ *
+ *   POST   /api/register    {"username", "password"}  -> 201 {"token"}
+ *   POST   /api/login       {"username", "password"}  -> 200 {"token"}
+ *   POST   /api/logout                                -> 204
+ *   GET    /api/keys                                  -> 200 {"keys": [...]}
+ *   POST   /api/keys        {"name", "value"}         -> 201
+ *   GET    /api/keys/{name}                           -> 200 {"name", "value"}
+ *   PUT    /api/keys/{name} {"value"}                 -> 200
+ *   DELETE /api/keys/{name}                           -> 204
+ *   GET    /api/generate                              -> 200 {"password"}
+ *   GET    /api/status                                -> 200 {"sessions", "kdf": {...}}
+ *
+ * Every call except register, login, generate and status needs the token from
+ * login in an "Authorization: Bearer <token>" header. Each token holds its
+ * own VaultSession, so any number of users can be logged in at once, and a
+ * token expires after it has been idle for the session timeout. Errors come
+ * back as {"error": "..."} with a 4xx or 5xx status.
+ *
+ * The server binds to the loopback address unless given another. It has no
+ * TLS, so it should not be exposed beyond the host.
+ */
+public class VaultServer {
+
+    public static final int DEFAULT_PORT = 8377;
+
+    //How long key derivation should take on this machine at login
+    private static final long TARGET_LOGIN_MILLIS = 250;
+
+    private static final long DEFAULT_SESSION_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    private static final int MAX_BODY_BYTES = 16 * 1024;
+    private static final int TOKEN_BYTES = 32;
+    private static final int BACKLOG = 1024;
+
+    //How often idle sessions are looked for, so their keys leave memory
+    //soon after the timeout even if no other request arrives
+    private static final long REAP_INTERVAL_MILLIS = 1_000;
+
+    private static final SecureRandom TOKEN_RANDOM = new SecureRandom();
+    private static final Logger LOG = Logger.getLogger(VaultServer.class.getName());
+
+    private final PasswordManager passwordManager;
+    private final AsyncPasswordManager asyncManager;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService reaper;
+    private final Gson gson = new Gson();
+
+    private final Map<String, TokenSession> sessions = new ConcurrentHashMap<>();
+    private volatile long sessionTimeoutMillis = DEFAULT_SESSION_TIMEOUT_MILLIS;
+
+    /**
+     * Starts handling a request, returning a future that completes once
+     * the response has been sent.
+     */
+    private interface Handler {
+        CompletableFuture<?> handle(HttpExchange exchange) throws Exception;
+    }
+
+    private interface Response<T> {
+        void send(T result) throws Exception;
+    }
+
+    /**
+     * A request that cannot be served, reported to the client with status.
+     */
+    private static class ApiException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private static class TokenSession {
+        final VaultSession session;
+        volatile long lastUsedNanos = System.nanoTime();
+
+        TokenSession(VaultSession session) {
+            this.session = session;
+        }
+    }
+
+    private static class Credentials {
+        String username;
+        String password;
+    }
+
+    private static class KeyRequest {
+        String name;
+        String value;
+    }
+
+    /**
+     * Creates a server on the loopback address with pools sized for this
+     * machine.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public VaultServer(PasswordManager passwordManager, int port) throws IOException {
+        this(passwordManager, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), defaultThreads());
+    }
+
+    /**
+     * @param threads the number of threads that read requests and write
+     * responses
+     */
+    public VaultServer(PasswordManager passwordManager, InetSocketAddress address, int threads) throws IOException {
+        this(new AsyncPasswordManager(passwordManager), address, threads);
+    }
+
+    /**
+     * Creates a server that does its work through the given
+     * AsyncPasswordManager, e.g. one with a tuned KdfScheduler. It is
+     * closed when the server stops.
+     */
+    public VaultServer(AsyncPasswordManager asyncManager, InetSocketAddress address, int threads) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("Thread count must be positive");
+        this.passwordManager = asyncManager.getPasswordManager();
+        this.asyncManager = asyncManager;
+        this.server = HttpServer.create(address, BACKLOG);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "vaultguard-http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "vaultguard-session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        route("/api/register", this::handleRegister);
+        route("/api/login", this::handleLogin);
+        route("/api/logout", this::handleLogout);
+        route("/api/keys", this::handleKeys);
+        route("/api/generate", this::handleGenerate);
+        route("/api/status", this::handleStatus);
+    }
+
+    /**
+     * Handlers only block reading small request bodies, so a couple of
+     * threads per core keep up.
+     */
+    private static int defaultThreads() {
+        return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public void start() {
+        server.start();
+        reaper.scheduleWithFixedDelay(this::expireIdleSessions,
+            REAP_INTERVAL_MILLIS, REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops accepting requests, waits up to delaySeconds for those in
+     * progress, and logs every session out.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdownNow();
+        reaper.shutdownNow();
+        asyncManager.close();
+        for (String token : sessions.keySet()) {
+            endSession(token);
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Sets how long a token may go unused before it is logged out.
+     */
+    public void setSessionTimeoutMillis(long sessionTimeoutMillis) {
+        if (sessionTimeoutMillis < 1) throw new IllegalArgumentException("Session timeout must be positive");
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
+    /**
+     * Returns the number of tokens currently logged in.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    private void route(String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            CompletableFuture<?> response;
+            try {
+                response = handler.handle(exchange);
+            } catch (Exception e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            response.whenComplete((result, failure) -> {
+                if (failure != null) {
+                    sendFailure(exchange, failure);
+                }
+                exchange.close();
+            });
+        });
+    }
+
+    /**
+     * Sends the response once the operation completes. If the operation
+     * or the response throws, the returned future fails with it.
+     */
+    private static <T> CompletableFuture<Void> respond(CompletableFuture<T> operation, Response<T> response) {
+        return operation.thenAccept(result -> {
+            try {
+                response.send(result);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private static CompletableFuture<Void> done() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private CompletableFuture<?> handleRegister(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "POST");
+        Credentials credentials = readBody(exchange, Credentials.class);
+        if (credentials.username == null || credentials.password == null) {
+            throw new ApiException(400, "username and password are required");
+        }
+
+        return respond(asyncManager.registerSession(credentials.username, credentials.password,
+                source(exchange), client(exchange)), session -> {
+            if (session == null) throw new ApiException(400, "Registration failed");
+            sendJson(exchange, 201, Map.of("token", startSession(session)));
+        });
+    }
+
+    private CompletableFuture<?> handleLogin(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "POST");
+        Credentials credentials = readBody(exchange, Credentials.class);
+        if (credentials.username == null || credentials.password == null) {
+            throw new ApiException(400, "username and password are required");
+        }
+
+        return respond(asyncManager.loginSession(credentials.username, credentials.password,
+                source(exchange), client(exchange)), session -> {
+            if (session == null) throw new ApiException(401, "Invalid username or password");
+            sendJson(exchange, 200, Map.of("token", startSession(session)));
+        });
+    }
+
+    private CompletableFuture<?> handleLogout(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "POST");
+        requireSession(exchange);
+        endSession(bearerToken(exchange));
+        sendEmpty(exchange, 204);
+        return done();
+    }
+
+    private CompletableFuture<?> handleGenerate(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "GET");
+        sendJson(exchange, 200, Map.of("password", passwordManager.generateStrongPassword()));
+        return done();
+    }
+
+    /**
+     * Reports the session count and the key derivation queue, so that
+     * operators can see logins being queued or shed.
+     */
+    private CompletableFuture<?> handleStatus(HttpExchange exchange) throws Exception {
+        requireMethod(exchange, "GET");
+        KdfScheduler scheduler = asyncManager.getKdfScheduler();
+        Map<String, Object> kdf = new LinkedHashMap<>();
+        kdf.put("running", scheduler.getRunningCount());
+        kdf.put("queued", scheduler.getQueueDepth());
+        kdf.put("admitted", scheduler.getAdmittedCount());
+        kdf.put("rejected", scheduler.getRejectedCount());
+        kdf.put("expired", scheduler.getExpiredCount());
+        kdf.put("completed", scheduler.getCompletedCount());
+        kdf.put("averageWaitMillis", scheduler.getAverageWaitMillis());
+        kdf.put("maxWaitMillis", scheduler.getMaxWaitMillis());
+        sendJson(exchange, 200, Map.of("sessions", getSessionCount(), "kdf", kdf));
+        return done();
+    }
+
+    /**
+     * Serves /api/keys and /api/keys/{name}.
+     */
+    private CompletableFuture<?> handleKeys(HttpExchange exchange) throws Exception {
+        VaultSession session = requireSession(exchange);
+        String method = exchange.getRequestMethod();
+        String name = keyName(exchange);
+
+        if (name == null) {
+            if (method.equals("GET")) {
+                return respond(asyncManager.getVaultKeyNames(session),
+                    names -> sendJson(exchange, 200, Map.of("keys", names)));
+            } else if (method.equals("POST")) {
+                KeyRequest request = readBody(exchange, KeyRequest.class);
+                if (request.name == null || request.value == null) {
+                    throw new ApiException(400, "name and value are required");
+                }
+                return respond(asyncManager.addKey(session, request.name, request.value), added -> {
+                    if (!added) throw new ApiException(409, "Key already exists or is invalid");
+                    sendJson(exchange, 201, Map.of("name", request.name));
+                });
+            }
+            throw methodNotAllowed(exchange, "GET, POST");
+        }
+
+        switch (method) {
+            case "GET":
+                return respond(asyncManager.getKeyValue(session, name), value -> {
+                    if (value == null) throw new ApiException(404, "No such key");
+                    sendJson(exchange, 200, Map.of("name", name, "value", value));
+                });
+            case "PUT": {
+                KeyRequest request = readBody(exchange, KeyRequest.class);
+                if (request.value == null) throw new ApiException(400, "value is required");
+                CompletableFuture<Boolean> edited = asyncManager.getVaultKeyNames(session).thenCompose(names -> {
+                    if (!names.contains(name)) return CompletableFuture.failedFuture(new ApiException(404, "No such key"));
+                    return asyncManager.editKey(session, name, request.value);
+                });
+                return respond(edited, ok -> {
+                    if (!ok) throw new ApiException(400, "Invalid value");
+                    sendJson(exchange, 200, Map.of("name", name));
+                });
+            }
+            case "DELETE":
+                return respond(asyncManager.deleteKey(session, name), deleted -> {
+                    if (!deleted) throw new ApiException(404, "No such key");
+                    sendEmpty(exchange, 204);
+                });
+            default:
+                throw methodNotAllowed(exchange, "GET, PUT, DELETE");
+        }
+    }
+
+    /**
+     * Returns the decoded {name} of /api/keys/{name}, or null for /api/keys.
+     */
+    private static String keyName(HttpExchange exchange) throws ApiException {
+        String path = exchange.getRequestURI().getRawPath();
+        String context = exchange.getHttpContext().getPath();
+        String rest = path.substring(context.length());
+        if (rest.isEmpty() || rest.equals("/")) return null;
+        if (!rest.startsWith("/") || rest.indexOf('/', 1) >= 0) throw new ApiException(404, "Not found");
+        try {
+            return URLDecoder.decode(rest.substring(1), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, "Malformed key name");
+        }
+    }
+
+    private String startSession(VaultSession session) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        TOKEN_RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new TokenSession(session));
+        return token;
+    }
+
+    private void endSession(String token) {
+        TokenSession tokenSession = sessions.remove(token);
+        if (tokenSession != null) {
+            tokenSession.session.close();
+        }
+    }
+
+    private void expireIdleSessions() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, TokenSession> entry : sessions.entrySet()) {
+            if (isExpired(entry.getValue(), now)) {
+                endSession(entry.getKey());
+            }
+        }
+    }
+
+    private boolean isExpired(TokenSession tokenSession, long now) {
+        return now - tokenSession.lastUsedNanos > TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis);
+    }
+
+    private VaultSession requireSession(HttpExchange exchange) throws ApiException {
+        String token = bearerToken(exchange);
+        TokenSession tokenSession = token == null ? null : sessions.get(token);
+        if (tokenSession == null) throw new ApiException(401, "Missing or unknown session token");
+
+        long now = System.nanoTime();
+        if (isExpired(tokenSession, now) || !tokenSession.session.isOpen()) {
+            endSession(token);
+            throw new ApiException(401, "Session expired");
+        }
+        tokenSession.lastUsedNanos = now;
+        return tokenSession.session;
+    }
+
+    private static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) return null;
+        return header.substring(7).trim();
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) throws ApiException {
+        if (!exchange.getRequestMethod().equals(method)) {
+            throw methodNotAllowed(exchange, method);
+        }
+    }
+
+    private static ApiException methodNotAllowed(HttpExchange exchange, String allowed) {
+        exchange.getResponseHeaders().set("Allow", allowed);
+        return new ApiException(405, "Method not allowed");
+    }
+
+    private <T> T readBody(HttpExchange exchange, Class<T> type) throws IOException, ApiException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                if (body.size() + read > MAX_BODY_BYTES) throw new ApiException(413, "Request body too large");
+                body.write(buffer, 0, read);
+            }
+        }
+        T value;
+        try {
+            value = gson.fromJson(body.toString(StandardCharsets.UTF_8), type);
+        } catch (JsonParseException e) {
+            throw new ApiException(400, "Malformed JSON");
+        }
+        if (value == null) throw new ApiException(400, "Request body required");
+        return value;
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    /**
+     * Returns the source that key derivations are queued under: the client
+     * address, or null, meaning the username, for local clients, which all
+     * share the loopback address. A local client can open connections
+     * for free, but each username it floods needs a vault, and registering
+     * one costs a derivation of its own. So a flood on one connection or
+     * a thousand gets no more turns than one login for another user.
+     */
+    private static String source(HttpExchange exchange) {
+        return isLocal(exchange) ? null : exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    /**
+     * Returns the client, within its source, that key derivations are
+     * queued under: the connection for local clients, so a few wrong
+     * passwords on one connection cannot fill the username's queue and
+     * lock its user out. Remote clients are one client of their address.
+     */
+    private static String client(HttpExchange exchange) {
+        InetSocketAddress peer = exchange.getRemoteAddress();
+        return isLocal(exchange) ? peer.getHostString() + ":" + peer.getPort() : null;
+    }
+
+    private static boolean isLocal(HttpExchange exchange) {
+        InetAddress address = exchange.getRemoteAddress().getAddress();
+        return address == null || address.isLoopbackAddress();
+    }
+
+    private void sendFailure(HttpExchange exchange, Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+            ? failure.getCause() : failure;
+        if (cause instanceof KdfRejectedException) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, 503, "Too many logins in progress, try again later");
+        } else if (cause instanceof ApiException) {
+            sendError(exchange, ((ApiException) cause).status, cause.getMessage());
+        } else {
+            LOG.log(Level.SEVERE, exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + " failed", cause);
+            sendError(exchange, 500, "Internal server error");
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            sendJson(exchange, status, Map.of("error", message));
+        } catch (IOException e) {
+            //The client has gone away
+        }
+    }
+
+    /**
+     * Runs the server until the process is stopped.
+     *
+     * Options: --port N (default 8377), --host ADDRESS (default loopback),
+     * --threads N, --dir PATH (vault directory, default "vaults").
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        InetAddress host = InetAddress.getLoopbackAddress();
+        int threads = defaultThreads();
+        String dir = "vaults";
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--host":
+                    host = InetAddress.getByName(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--dir":
+                    dir = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        EncryptionService encryptionService = new EncryptionService();
+        try {
+            encryptionService.setIterations(encryptionService.calibrateIterations(TARGET_LOGIN_MILLIS));
+        } catch (GeneralSecurityException e) {
+            //Keep the default iteration count
+        }
+        PasswordManager passwordManager = new PasswordManager(dir, null, encryptionService, null);
+
+        VaultServer server = new VaultServer(passwordManager, new InetSocketAddress(host, port), threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+        server.start();
+        System.out.println("VaultGuard API listening on http://" + host.getHostAddress() + ":" + server.getPort());
+    }
+}
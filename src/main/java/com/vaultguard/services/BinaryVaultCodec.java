@@ -0,0 +1,337 @@
+package com.vaultguard.services;
+
+import com.vaultguard.model.EncryptedData;
+import com.vaultguard.model.VaultEntry;
+import com.vaultguard.model.VaultFile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Encodes vaults in the compact binary vault format.
+ *
+ * Layout (big-endian):
+ *   header:  magic "VGLT", u8 format version, salt field,
+ *            KDF algorithm (u16 length + UTF-8), i32 KDF iterations,
+ *            wrapped key IV field, wrapped key ciphertext field,
+ *            i32 key generation, rotation key IV field,
+ *            rotation key ciphertext field, i64 vault version,
+ *            i32 entry count
+ *   entries: name (u16 length + UTF-8), IV field, ciphertext field,
+ *            i32 key generation
+ *
+ * A field is a u8 kind followed by an i32 length and the bytes. Salts, IVs
+ * and ciphertexts are stored as raw bytes (kind 0); those held as Base64
+ * strings are stored as the bytes they encode. A string that is not
+ * canonical Base64 is stored as UTF-8 text instead (kind 1), and null as
+ * kind 2 with length 0, so every vault round-trips exactly. Raw IVs and
+ * ciphertexts are read back as byte-backed EncryptedData, so they are never
+ * converted to Base64 unless a JSON vault is written.
+ *
+ * Version 1 files, which predate the wrapped key fields, and version 2
+ * files, which predate key generations, are still read; their entries are
+ * all of generation 0. Version 3 files, which predate vault versions, are
+ * read as vault version 0.
+ */
+public final class BinaryVaultCodec {
+
+    static final int MAGIC = 0x56474C54; //"VGLT"
+    static final int FORMAT_VERSION = 4;
+    private static final int FORMAT_VERSION_WITHOUT_WRAPPED_KEY = 1;
+    private static final int FORMAT_VERSION_WITHOUT_KEY_GENERATIONS = 2;
+    private static final int FORMAT_VERSION_WITHOUT_VAULT_VERSION = 3;
+
+    private static final byte FIELD_RAW = 0;
+    private static final byte FIELD_TEXT = 1;
+    private static final byte FIELD_NULL = 2;
+
+    /**
+     * The fixed part of a binary vault that precedes the entries.
+     */
+    public static class Header {
+        public final int version;
+        public final String salt;
+        public final String kdfAlgorithm;
+        public final int kdfIterations;
+        public final EncryptedData wrappedKey;
+        public final int keyGeneration;
+        public final EncryptedData rotationKey;
+        public final long vaultVersion;
+        public final int entryCount;
+
+        Header(int version, String salt, String kdfAlgorithm, int kdfIterations, EncryptedData wrappedKey,
+               int keyGeneration, EncryptedData rotationKey, long vaultVersion, int entryCount) {
+            this.version = version;
+            this.salt = salt;
+            this.kdfAlgorithm = kdfAlgorithm;
+            this.kdfIterations = kdfIterations;
+            this.wrappedKey = wrappedKey;
+            this.keyGeneration = keyGeneration;
+            this.rotationKey = rotationKey;
+            this.vaultVersion = vaultVersion;
+            this.entryCount = entryCount;
+        }
+    }
+
+    private BinaryVaultCodec() {
+    }
+
+    /**
+     * Returns true if the data starts with the binary vault magic.
+     */
+    public static boolean isBinary(byte[] data) {
+        return data.length >= 4 && ByteBuffer.wrap(data, 0, 4).getInt() == MAGIC;
+    }
+
+    public static void encode(VaultFile vaultFile, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        writeBase64Field(out, vaultFile.salt);
+        writeShortString(out, vaultFile.kdfAlgorithm);
+        out.writeInt(vaultFile.kdfIterations);
+        writeEncryptedData(out, vaultFile.wrappedKey);
+        out.writeInt(vaultFile.keyGeneration);
+        writeEncryptedData(out, vaultFile.rotationKey);
+        out.writeLong(vaultFile.version);
+        out.writeInt(vaultFile.keys.size());
+
+        for (VaultEntry entry : vaultFile.keys) {
+            writeShortString(out, entry.name);
+            writeEncryptedData(out, entry.encryptedKey);
+            out.writeInt(entry.encryptedKey == null ? 0 : entry.encryptedKey.getKeyGeneration());
+        }
+
+        out.flush();
+    }
+
+    public static VaultFile decode(ByteBuffer buffer) throws IOException {
+        Header header = readHeader(buffer);
+        VaultFile vaultFile = new VaultFile(header.salt, header.kdfAlgorithm, header.kdfIterations, new ArrayList<>());
+        vaultFile.wrappedKey = header.wrappedKey;
+        vaultFile.keyGeneration = header.keyGeneration;
+        vaultFile.rotationKey = header.rotationKey;
+        vaultFile.version = header.vaultVersion;
+        for (int i = 0; i < header.entryCount; i++) {
+            String name = readEntryName(buffer);
+            vaultFile.keys.add(new VaultEntry(name, readEncryptedData(buffer, header.version)));
+        }
+        return vaultFile;
+    }
+
+    /**
+     * Reads the header, leaving the buffer positioned at the first entry.
+     */
+    public static Header readHeader(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a binary vault file");
+            }
+            int version = buffer.get() & 0xFF;
+            if (version < FORMAT_VERSION_WITHOUT_WRAPPED_KEY || version > FORMAT_VERSION) {
+                throw new IOException("Unsupported vault format version " + version);
+            }
+            String salt = readBase64Field(buffer);
+            String kdfAlgorithm = readShortString(buffer);
+            int kdfIterations = buffer.getInt();
+            EncryptedData wrappedKey = null;
+            if (version > FORMAT_VERSION_WITHOUT_WRAPPED_KEY) {
+                wrappedKey = readOptionalKey(buffer);
+            }
+            int keyGeneration = 0;
+            EncryptedData rotationKey = null;
+            if (version > FORMAT_VERSION_WITHOUT_KEY_GENERATIONS) {
+                keyGeneration = buffer.getInt();
+                rotationKey = readOptionalKey(buffer);
+            }
+            long vaultVersion = 0;
+            if (version > FORMAT_VERSION_WITHOUT_VAULT_VERSION) {
+                vaultVersion = buffer.getLong();
+            }
+            int entryCount = buffer.getInt();
+            if (entryCount < 0) {
+                throw new IOException("Corrupt binary vault entry count " + entryCount);
+            }
+            return new Header(version, salt, kdfAlgorithm, kdfIterations, wrappedKey, keyGeneration, rotationKey, vaultVersion, entryCount);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt binary vault file", e);
+        }
+    }
+
+    /**
+     * Reads the name of the entry at the buffer's position, leaving the
+     * buffer positioned at the entry's encrypted data.
+     */
+    public static String readEntryName(ByteBuffer buffer) throws IOException {
+        try {
+            return readShortString(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt binary vault file", e);
+        }
+    }
+
+    /**
+     * Reads the encrypted data of an entry in a file of the given format version.
+     */
+    public static EncryptedData readEncryptedData(ByteBuffer buffer, int version) throws IOException {
+        try {
+            EncryptedData data = readEncryptedFields(buffer);
+            if (version > FORMAT_VERSION_WITHOUT_KEY_GENERATIONS) {
+                data = data.withKeyGeneration(buffer.getInt());
+            }
+            return data;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt binary vault file", e);
+        }
+    }
+
+    /**
+     * Moves the buffer past the encrypted data of an entry in a file of the
+     * given format version without decoding it.
+     */
+    public static void skipEncryptedData(ByteBuffer buffer, int version) throws IOException {
+        skipField(buffer);
+        skipField(buffer);
+        if (version > FORMAT_VERSION_WITHOUT_KEY_GENERATIONS) {
+            if (buffer.remaining() < 4) {
+                throw new IOException("Corrupt binary vault file");
+            }
+            buffer.position(buffer.position() + 4);
+        }
+    }
+
+    private static void skipField(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 5) {
+            throw new IOException("Corrupt binary vault file");
+        }
+        buffer.get(); //field kind
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt binary vault field length " + length);
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private static void writeShortString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("String too long for vault header: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readShortString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBase64Field(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeByte(FIELD_NULL);
+            out.writeInt(0);
+            return;
+        }
+        byte[] raw = decodeCanonicalBase64(value);
+        if (raw != null) {
+            out.writeByte(FIELD_RAW);
+            out.writeInt(raw.length);
+            out.write(raw);
+        } else {
+            byte[] text = value.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(FIELD_TEXT);
+            out.writeInt(text.length);
+            out.write(text);
+        }
+    }
+
+    private static void writeEncryptedData(DataOutputStream out, EncryptedData data) throws IOException {
+        if (data != null && data.isRaw()) {
+            writeRawField(out, data.getIvBytes());
+            writeRawField(out, data.getCiphertextBytes());
+        } else {
+            writeBase64Field(out, data == null ? null : data.getIv());
+            writeBase64Field(out, data == null ? null : data.getCiphertext());
+        }
+    }
+
+    private static void writeRawField(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeByte(FIELD_NULL);
+            out.writeInt(0);
+            return;
+        }
+        out.writeByte(FIELD_RAW);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static EncryptedData readOptionalKey(ByteBuffer buffer) throws IOException {
+        EncryptedData key = readEncryptedFields(buffer);
+        return key.getIv() == null && key.getCiphertext() == null ? null : key;
+    }
+
+    private static EncryptedData readEncryptedFields(ByteBuffer buffer) throws IOException {
+        byte ivKind = buffer.get();
+        byte[] iv = readFieldBytes(buffer);
+        byte ciphertextKind = buffer.get();
+        byte[] ciphertext = readFieldBytes(buffer);
+        if (ivKind == FIELD_RAW && ciphertextKind == FIELD_RAW) {
+            return new EncryptedData(iv, ciphertext);
+        }
+        return new EncryptedData(fieldString(ivKind, iv), fieldString(ciphertextKind, ciphertext));
+    }
+
+    private static byte[] readFieldBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt binary vault field length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String readBase64Field(ByteBuffer buffer) throws IOException {
+        byte kind = buffer.get();
+        return fieldString(kind, readFieldBytes(buffer));
+    }
+
+    private static String fieldString(byte kind, byte[] bytes) throws IOException {
+        if (kind == FIELD_RAW) {
+            return Base64.getEncoder().encodeToString(bytes);
+        } else if (kind == FIELD_TEXT) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        } else if (kind == FIELD_NULL) {
+            return null;
+        }
+        throw new IOException("Unknown binary vault field kind " + kind);
+    }
+
+    /**
+     * Returns the bytes encoded by value, or null if value is not the exact
+     * string the Base64 encoder would produce for them.
+     */
+    private static byte[] decodeCanonicalBase64(String value) {
+        if (value.length() % 4 != 0) {
+            return null;
+        }
+        byte[] raw;
+        try {
+            raw = Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        byte[] reencoded = Base64.getEncoder().encode(raw);
+        return Arrays.equals(reencoded, value.getBytes(StandardCharsets.ISO_8859_1)) ? raw : null;
+    }
+}
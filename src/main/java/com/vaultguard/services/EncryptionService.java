@@ -4,8 +4,11 @@ import com.vaultguard.model.EncryptedData;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
-import java.util.Base64;
+import java.util.Arrays;
 
 public class EncryptionService {
 
@@ -13,43 +16,258 @@ public class EncryptionService {
     private static final int TAG_LENGTH_BIT = 128;
     private static final int KEY_LENGTH = 256;
     private static final int ITERATIONS = 100_000;
+    private static final int CALIBRATION_ITERATIONS = 20_000;
+
+    //Iteration counts accepted from a vault header. Anything outside these
+    //is corruption or tampering, and a huge count would tie up a thread
+    //for hours.
+    public static final int MIN_KDF_ITERATIONS = 10_000;
+    public static final int MAX_KDF_ITERATIONS = 10_000_000;
+    private static final int CALIBRATION_ROUNDS = 3;
 
     private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
     private static final String AES_ALGORITHM = "AES/GCM/NoPadding";
 
+    //Looking up a Cipher and seeding a SecureRandom cost far more than
+    //encrypting a small secret, so each thread keeps one of each. A Cipher
+    //is re-initialised with a fresh IV on every call, so it carries no
+    //state between messages.
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(AES_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(AES_ALGORITHM + " is not available", e);
+        }
+    });
+    private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(SecureRandom::new);
+
+    //KDF parameters for new keys; vaults record the ones they were made with
+    private int iterations = ITERATIONS;
+
+    public String getKdfAlgorithm() {
+        return PBKDF2_ALGORITHM;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void setIterations(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iteration count must be positive");
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Returns whether a vault's recorded KDF parameters are ones to derive
+     * a key with: a PBKDF2 algorithm and an iteration count in range.
+     */
+    public boolean isSupportedKdf(String algorithm, int iterations) {
+        return algorithm != null && algorithm.startsWith("PBKDF2WithHmacSHA")
+            && iterations >= MIN_KDF_ITERATIONS && iterations <= MAX_KDF_ITERATIONS;
+    }
+
+    /**
+     * Derives a key with the current KDF parameters.
+     */
     public SecretKey deriveKey(String password, byte[] salt) throws GeneralSecurityException{
-        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, KEY_LENGTH);
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
+        return deriveKey(password, salt, PBKDF2_ALGORITHM, iterations);
+    }
+
+    /**
+     * Derives a key with the given KDF parameters. PBKDF2WithHmacSHA256 runs
+     * on the built-in engine, which gives the same key as the JCE provider
+     * with half the hashing work; other algorithms go through the provider.
+     */
+    public SecretKey deriveKey(String password, byte[] salt, String algorithm, int iterations) throws GeneralSecurityException{
+        if (!PBKDF2_ALGORITHM.equals(algorithm)) {
+            return deriveKeyWithProvider(password, salt, algorithm, iterations);
+        }
+        //The JCE provider encodes the password as UTF-8, so must we
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        try {
+            byte[] keyBytes = Pbkdf2HmacSha256.derive(passwordBytes, salt, iterations, KEY_LENGTH / 8);
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Derives a key with the current KDF parameters through the JCE
+     * provider. Kept as the reference implementation for tests and benchmarks.
+     */
+    public SecretKey deriveKeyWithProvider(String password, byte[] salt) throws GeneralSecurityException{
+        return deriveKeyWithProvider(password, salt, PBKDF2_ALGORITHM, iterations);
+    }
+
+    private SecretKey deriveKeyWithProvider(String password, byte[] salt, String algorithm, int iterations) throws GeneralSecurityException{
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm);
         byte[] keyBytes = factory.generateSecret(spec).getEncoded();
+        spec.clearPassword();
         return new SecretKeySpec(keyBytes, "AES");
     }
 
-    public EncryptedData encrypt(String message, SecretKey key) throws GeneralSecurityException {
-        byte[] iv = new byte[IV_LENGTH];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(TAG_LENGTH_BIT, iv);
+    /**
+     * Measures key derivation on this host and returns the iteration count
+     * that makes one derivation take about targetMillis. The count is
+     * rounded down to a multiple of 10,000, is never below the default
+     * of 100,000 and never above MAX_KDF_ITERATIONS.
+     */
+    public int calibrateIterations(long targetMillis) throws GeneralSecurityException {
+        byte[] salt = new byte[16];
+        long fastest = Long.MAX_VALUE;
+        //The first rounds also warm up the JIT; the fastest one is the
+        //closest to what a login will see
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            long start = System.nanoTime();
+            deriveKey("calibration", salt, PBKDF2_ALGORITHM, CALIBRATION_ITERATIONS);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        double perIteration = (double) Math.max(fastest, 1) / CALIBRATION_ITERATIONS;
+        long target = (long) (targetMillis * 1_000_000L / perIteration);
+        long rounded = target / 10_000 * 10_000;
+        return (int) Math.max(ITERATIONS, Math.min(rounded, MAX_KDF_ITERATIONS));
+    }
+
+    /**
+     * Generates a random key for encrypting vault entries.
+     */
+    public SecretKey generateDataKey() {
+        byte[] keyBytes = new byte[KEY_LENGTH / 8];
+        RANDOMS.get().nextBytes(keyBytes);
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    /**
+     * Encrypts a data key under a key-encryption key.
+     */
+    public EncryptedData wrapKey(SecretKey dataKey, SecretKey wrappingKey) throws GeneralSecurityException {
+        byte[] keyBytes = dataKey.getEncoded();
+        try {
+            return encryptBytes(keyBytes, wrappingKey, null);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
 
-        Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, key, gcmSpec);
-        byte[] ciphertextBytes = cipher.doFinal(message.getBytes());
+    /**
+     * Decrypts a data key wrapped by wrapKey. Throws if wrappingKey is not
+     * the key it was wrapped with, so unwrapping also checks the password.
+     */
+    public SecretKey unwrapKey(EncryptedData wrappedKey, SecretKey wrappingKey) throws GeneralSecurityException {
+        byte[] keyBytes = decryptBytes(wrappedKey, wrappingKey);
+        try {
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
 
-        return new EncryptedData(
-            Base64.getEncoder().encodeToString(iv),
-            Base64.getEncoder().encodeToString(ciphertextBytes)
-        );
+    public EncryptedData encrypt(String message, SecretKey key) throws GeneralSecurityException {
+        return encrypt(message, key, null);
+    }
+
+    /**
+     * Encrypts with a nonce from the given sequence instead of a random one.
+     * Nonces from a counter sequence cost next to nothing and, unlike random
+     * ones, cannot collide however many messages the key encrypts.
+     *
+     * @param nonces the key's nonce sequence, or null for a random nonce
+     */
+    public EncryptedData encrypt(String message, SecretKey key, NonceSequence nonces) throws GeneralSecurityException {
+        byte[] plaintext = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            return encryptBytes(plaintext, key, nonces);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
     }
 
     public String decrypt(EncryptedData encryptedData, SecretKey key) throws GeneralSecurityException {
-        byte[] iv = Base64.getDecoder().decode(encryptedData.getIv());
-        byte[] ciphertext = Base64.getDecoder().decode(encryptedData.getCiphertext());
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(TAG_LENGTH_BIT, iv);
+        byte[] plaintext = decryptBytes(encryptedData, key);
+        try {
+            return new String(plaintext, StandardCharsets.UTF_8);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypts the remaining bytes of plaintext, leaving its position at
+     * its limit. The result holds raw bytes, with no Base64 encoding.
+     */
+    public EncryptedData encrypt(ByteBuffer plaintext, SecretKey key) throws GeneralSecurityException {
+        return encrypt(plaintext, key, null);
+    }
+
+    /**
+     * Encrypts the remaining bytes of plaintext with a nonce from the given
+     * sequence, or a random one if nonces is null.
+     */
+    public EncryptedData encrypt(ByteBuffer plaintext, SecretKey key, NonceSequence nonces) throws GeneralSecurityException {
+        byte[] iv = newIv(nonces);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BIT, iv));
+        byte[] ciphertext = new byte[cipher.getOutputSize(plaintext.remaining())];
+        int length = cipher.doFinal(plaintext, ByteBuffer.wrap(ciphertext));
+        return new EncryptedData(iv, length == ciphertext.length ? ciphertext : Arrays.copyOf(ciphertext, length));
+    }
+
+    /**
+     * Decrypts into out, starting at its position, without building any
+     * intermediate String. The caller owns the buffer and can reuse it and
+     * zero it afterwards; it needs plaintextLength(encryptedData) bytes
+     * remaining.
+     *
+     * @return the number of plaintext bytes written
+     * @throws ShortBufferException if out has too little room
+     */
+    public int decrypt(EncryptedData encryptedData, SecretKey key, ByteBuffer out) throws GeneralSecurityException {
+        if (out.remaining() < plaintextLength(encryptedData)) {
+            throw new ShortBufferException("Need " + plaintextLength(encryptedData) + " bytes, have " + out.remaining());
+        }
+        Cipher cipher = initDecrypt(encryptedData, key);
+        return cipher.doFinal(ByteBuffer.wrap(encryptedData.getCiphertextBytes()), out);
+    }
 
-        Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
-        cipher.init(Cipher.DECRYPT_MODE, key, gcmSpec);
-        byte[] plaintextBytes = cipher.doFinal(ciphertext);
+    /**
+     * Returns the length of the plaintext that encryptedData decrypts to.
+     */
+    public static int plaintextLength(EncryptedData encryptedData) {
+        return Math.max(0, encryptedData.getCiphertextBytes().length - TAG_LENGTH_BIT / 8);
+    }
+
+    private EncryptedData encryptBytes(byte[] plaintext, SecretKey key, NonceSequence nonces) throws GeneralSecurityException {
+        byte[] iv = newIv(nonces);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BIT, iv));
+        return new EncryptedData(iv, cipher.doFinal(plaintext));
+    }
+
+    private byte[] decryptBytes(EncryptedData encryptedData, SecretKey key) throws GeneralSecurityException {
+        return initDecrypt(encryptedData, key).doFinal(encryptedData.getCiphertextBytes());
+    }
+
+    private byte[] newIv(NonceSequence nonces) throws GeneralSecurityException {
+        if (nonces != null) {
+            try {
+                return nonces.next();
+            } catch (IOException e) {
+                throw new GeneralSecurityException("Could not reserve GCM nonces", e);
+            }
+        }
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOMS.get().nextBytes(iv);
+        return iv;
+    }
 
-        return new String(plaintextBytes);
+    private Cipher initDecrypt(EncryptedData encryptedData, SecretKey key) throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BIT, encryptedData.getIvBytes()));
+        return cipher;
     }
 }
 
@@ -0,0 +1,125 @@
+package com.vaultguard.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces concurrent writes into batches so that a burst of commits pays
+ * for one fsync instead of one each. The first caller to arrive becomes the
+ * leader: it waits out the commit window, takes every write queued so far
+ * and hands them to the batch writer in order. Other callers block until
+ * the batch containing their write has been written.
+ */
+class GroupCommitter<T> {
+
+    interface BatchWriter<T> {
+        void write(List<T> batch) throws IOException;
+    }
+
+    private static class Pending<T> {
+        final T item;
+        boolean done = false;
+        IOException error = null;
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+
+    private final BatchWriter<T> writer;
+    private final long windowMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchDone = lock.newCondition();
+    private final List<Pending<T>> queue = new ArrayList<>();
+    private boolean leaderActive = false;
+
+    GroupCommitter(BatchWriter<T> writer, long windowMillis) {
+        this.writer = writer;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Queues a write and returns once it has been written as part of a batch.
+     *
+     * @throws IOException if the batch containing the write failed
+     */
+    void commit(T item) throws IOException {
+        Pending<T> pending = new Pending<>(item);
+        lock.lock();
+        try {
+            queue.add(pending);
+            while (!pending.done) {
+                if (leaderActive) {
+                    batchDone.awaitUninterruptibly();
+                } else {
+                    lead();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (pending.error != null) {
+            throw pending.error;
+        }
+    }
+
+    /**
+     * Writes one batch. Called with the lock held; the lock is released
+     * while waiting for the window and while writing.
+     */
+    private void lead() {
+        leaderActive = true;
+        List<Pending<T>> batch;
+        IOException error = null;
+        lock.unlock();
+        try {
+            if (windowMillis > 0) {
+                try {
+                    Thread.sleep(windowMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            lock.lock();
+        }
+
+        batch = new ArrayList<>(queue);
+        queue.clear();
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item);
+        }
+
+        Throwable failure = null;
+        lock.unlock();
+        try {
+            writer.write(items);
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            lock.lock();
+        }
+
+        //Waiters must always be released, even if the writer blew up
+        if (failure instanceof IOException) {
+            error = (IOException) failure;
+        } else if (failure != null) {
+            error = new IOException("Group commit failed", failure);
+        }
+        for (Pending<T> pending : batch) {
+            pending.error = error;
+            pending.done = true;
+        }
+        leaderActive = false;
+        batchDone.signalAll();
+
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.vaultguard.services;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.vaultguard.model.EncryptedData;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Streams key name/value records in and out of CSV and JSON, and encrypts
+ * or decrypts them in parallel. Records are handled a chunk at a time, so
+ * only one chunk of plaintext is ever held in memory.
+ *
+ * CSV input is matched by its header row, which covers the exports of most
+ * password managers: the name comes from a name, title, account, key or url
+ * column and the value from a value, password or login_password column
+ * (Bitwarden, LastPass, 1Password, KeePass, Chrome and Firefox exports).
+ * JSON input is either an array of objects with name/title and value/password
+ * fields, or a Bitwarden export whose items hold login.password.
+ */
+public class ImportExportService {
+
+    public enum Format { CSV, JSON }
+
+    public static final int CHUNK_SIZE = 1024;
+
+    private static final List<String> NAME_COLUMNS = List.of("name", "title", "account", "key", "url", "login_uri");
+    private static final List<String> VALUE_COLUMNS = List.of("value", "password", "login_password");
+
+    private final EncryptionService encryptionService;
+
+    public ImportExportService(EncryptionService encryptionService) {
+        this.encryptionService = encryptionService != null ? encryptionService : new EncryptionService();
+    }
+
+    /**
+     * Reads name/value records one at a time.
+     */
+    public abstract static class RecordReader {
+
+        /**
+         * Returns the next record as {name, value}, or null at the end of
+         * the input. Either element is null if the record lacks it.
+         */
+        public abstract String[] next() throws IOException;
+
+        /**
+         * Returns up to max records, or an empty list at the end of the input.
+         */
+        public List<String[]> nextChunk(int max) throws IOException {
+            List<String[]> chunk = new ArrayList<>(Math.min(max, CHUNK_SIZE));
+            String[] record;
+            while (chunk.size() < max && (record = next()) != null) {
+                chunk.add(record);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Writes name/value records. finish() must be called once all records
+     * are written; it flushes but does not close the underlying writer.
+     */
+    public abstract static class RecordWriter {
+        public abstract void write(String name, String value) throws IOException;
+
+        public abstract void finish() throws IOException;
+    }
+
+    public RecordReader openReader(Reader in, Format format) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        if (format == Format.CSV) {
+            return new CsvRecordReader(reader);
+        }
+        return new JsonRecordReader(new JsonReader(reader));
+    }
+
+    public RecordWriter openWriter(Writer out, Format format) throws IOException {
+        if (format == Format.CSV) {
+            return new CsvRecordWriter(out);
+        }
+        return new JsonRecordWriter(new JsonWriter(out));
+    }
+
+    /**
+     * Encrypts values in parallel across the common fork-join pool.
+     *
+     * @return the encrypted values, in the same order
+     */
+    public List<EncryptedData> encryptAll(List<String> values, SecretKey key) throws GeneralSecurityException {
+        return encryptAll(values, key, null);
+    }
+
+    /**
+     * Encrypts values in parallel, taking nonces from the key's nonce
+     * sequence (or random nonces if nonces is null).
+     *
+     * @return the encrypted values, in the same order
+     */
+    public List<EncryptedData> encryptAll(List<String> values, SecretKey key, NonceSequence nonces) throws GeneralSecurityException {
+        return parallelMap(values, value -> encryptionService.encrypt(value, key, nonces));
+    }
+
+    /**
+     * Encrypts values in parallel with the ring's write key, tagging each
+     * with its generation.
+     *
+     * @return the encrypted values, in the same order
+     */
+    public List<EncryptedData> encryptAll(List<String> values, KeyRing keys, NonceSequence nonces) throws GeneralSecurityException {
+        SecretKey key = keys.getWriteKey();
+        int generation = keys.getWriteGeneration();
+        return parallelMap(values, value -> encryptionService.encrypt(value, key, nonces).withKeyGeneration(generation));
+    }
+
+    /**
+     * Decrypts values in parallel across the common fork-join pool.
+     *
+     * @return the plaintext values, in the same order
+     */
+    public List<String> decryptAll(List<EncryptedData> values, SecretKey key) throws GeneralSecurityException {
+        return parallelMap(values, value -> encryptionService.decrypt(value, key));
+    }
+
+    /**
+     * Decrypts values in parallel, each with the ring's key of its generation.
+     *
+     * @return the plaintext values, in the same order
+     */
+    public List<String> decryptAll(List<EncryptedData> values, KeyRing keys) throws GeneralSecurityException {
+        return parallelMap(values, value -> encryptionService.decrypt(value, keys.keyFor(value)));
+    }
+
+    private interface CryptoFunction<T, R> {
+        R apply(T value) throws GeneralSecurityException;
+    }
+
+    private static class CryptoFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CryptoFailure(GeneralSecurityException cause) {
+            super(cause);
+        }
+    }
+
+    private static <T, R> List<R> parallelMap(List<T> values, CryptoFunction<T, R> function) throws GeneralSecurityException {
+        try {
+            return values.parallelStream().map(value -> {
+                try {
+                    return function.apply(value);
+                } catch (GeneralSecurityException e) {
+                    throw new CryptoFailure(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (RuntimeException e) {
+            //The pool may rethrow a copy of the failure wrapping the original
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static class CsvRecordReader extends RecordReader {
+        private final BufferedReader reader;
+        private int nameColumn = -1;
+        private int valueColumn = -1;
+        private boolean started = false;
+
+        CsvRecordReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public String[] next() throws IOException {
+            if (!started) {
+                readHeader();
+                started = true;
+            }
+            List<String> row;
+            do {
+                row = readRow();
+                if (row == null) {
+                    return null;
+                }
+            } while (row.size() == 1 && row.get(0).isEmpty()); //blank line
+
+            String name = nameColumn < row.size() ? row.get(nameColumn) : null;
+            String value = valueColumn < row.size() ? row.get(valueColumn) : null;
+            return new String[] {name, value};
+        }
+
+        private void readHeader() throws IOException {
+            List<String> header = readRow();
+            if (header == null) {
+                throw new IOException("CSV input is empty");
+            }
+            if (!header.isEmpty() && header.get(0).startsWith("\uFEFF")) {
+                header.set(0, header.get(0).substring(1));
+            }
+            List<String> columns = new ArrayList<>();
+            for (String column : header) {
+                columns.add(column.trim().toLowerCase(Locale.ROOT));
+            }
+            nameColumn = findColumn(columns, NAME_COLUMNS);
+            valueColumn = findColumn(columns, VALUE_COLUMNS);
+            if (nameColumn < 0 || valueColumn < 0) {
+                throw new IOException("CSV header needs a name column and a value or password column");
+            }
+        }
+
+        private int findColumn(List<String> columns, List<String> candidates) {
+            for (String candidate : candidates) {
+                int index = columns.indexOf(candidate);
+                if (index >= 0) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Reads one RFC 4180 row; quoted fields may contain commas, doubled
+         * quotes and line breaks.
+         *
+         * @return the fields, or null at the end of the input
+         */
+        private List<String> readRow() throws IOException {
+            int c = reader.read();
+            if (c < 0) {
+                return null;
+            }
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c < 0) {
+                        throw new IOException("Unterminated quoted CSV field");
+                    }
+                    if (c == '"') {
+                        reader.mark(1);
+                        int following = reader.read();
+                        if (following == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            reader.reset();
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\r' || c == '\n' || c < 0) {
+                    if (c == '\r') {
+                        reader.mark(1);
+                        if (reader.read() != '\n') {
+                            reader.reset();
+                        }
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                } else {
+                    field.append((char) c);
+                }
+                c = reader.read();
+            }
+        }
+    }
+
+    private static class JsonRecordReader extends RecordReader {
+        private final JsonReader reader;
+        private boolean started = false;
+
+        JsonRecordReader(JsonReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public String[] next() throws IOException {
+            if (!started) {
+                openItems();
+                started = true;
+            }
+            if (!reader.hasNext()) {
+                return null;
+            }
+            return readItem();
+        }
+
+        /**
+         * Positions the reader inside the array of items: either the top
+         * level array, or the "items" array of a Bitwarden export.
+         */
+        private void openItems() throws IOException {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("items")) {
+                        reader.beginArray();
+                        return;
+                    }
+                    reader.skipValue();
+                }
+                throw new IOException("JSON input has no items array");
+            }
+            reader.beginArray();
+        }
+
+        private String[] readItem() throws IOException {
+            String name = null;
+            String value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (field.equals("login") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    String password = readLoginPassword();
+                    if (value == null) {
+                        value = password;
+                    }
+                } else if ((field.equals("name") || field.equals("title")) && reader.peek() == JsonToken.STRING) {
+                    if (name == null) {
+                        name = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                } else if ((field.equals("value") || field.equals("password")) && reader.peek() == JsonToken.STRING) {
+                    value = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return new String[] {name, value};
+        }
+
+        private String readLoginPassword() throws IOException {
+            String password = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("password") && reader.peek() == JsonToken.STRING) {
+                    password = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return password;
+        }
+    }
+
+    private static class CsvRecordWriter extends RecordWriter {
+        private final Writer out;
+
+        CsvRecordWriter(Writer out) throws IOException {
+            this.out = out;
+            out.write("name,value\r\n");
+        }
+
+        @Override
+        public void write(String name, String value) throws IOException {
+            writeField(name);
+            out.write(',');
+            writeField(value);
+            out.write("\r\n");
+        }
+
+        private void writeField(String field) throws IOException {
+            boolean needsQuotes = field.indexOf(',') >= 0
+                || field.indexOf('"') >= 0
+                || field.indexOf('\n') >= 0
+                || field.indexOf('\r') >= 0
+                || (!field.isEmpty() && (field.charAt(0) == ' ' || field.charAt(field.length() - 1) == ' '));
+            if (!needsQuotes) {
+                out.write(field);
+                return;
+            }
+            out.write('"');
+            out.write(field.replace("\"", "\"\""));
+            out.write('"');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static class JsonRecordWriter extends RecordWriter {
+        private final JsonWriter out;
+
+        JsonRecordWriter(JsonWriter out) throws IOException {
+            this.out = out;
+            out.setIndent("  ");
+            out.beginArray();
+        }
+
+        @Override
+        public void write(String name, String value) throws IOException {
+            out.beginObject();
+            out.name("name").value(name);
+            out.name("value").value(value);
+            out.endObject();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.endArray();
+            out.flush();
+        }
+    }
+}
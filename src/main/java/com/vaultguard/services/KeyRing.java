@@ -0,0 +1,93 @@
+package com.vaultguard.services;
+
+import com.vaultguard.model.EncryptedData;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+
+/**
+ * The data keys of an unlocked vault, by key generation. Outside a key
+ * rotation it holds one key. During a rotation it also holds the next
+ * generation's key: new data is encrypted with that one, while entries not
+ * yet rotated still decrypt with the current key.
+ *
+ * A ring never changes, so a reader that took one keeps a consistent set of
+ * keys while the rotation moves on.
+ */
+public final class KeyRing {
+    private final int generation;
+    private final SecretKey currentKey;
+    private final SecretKey nextKey;
+
+    /**
+     * @param generation the generation of currentKey
+     * @param nextKey the key of the next generation while a rotation is in
+     * progress, or null
+     */
+    public KeyRing(int generation, SecretKey currentKey, SecretKey nextKey) {
+        this.generation = generation;
+        this.currentKey = currentKey;
+        this.nextKey = nextKey;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public SecretKey getCurrentKey() {
+        return currentKey;
+    }
+
+    public SecretKey getNextKey() {
+        return nextKey;
+    }
+
+    public boolean isRotating() {
+        return nextKey != null;
+    }
+
+    /**
+     * Returns the key new data is encrypted with.
+     */
+    public SecretKey getWriteKey() {
+        return nextKey != null ? nextKey : currentKey;
+    }
+
+    public int getWriteGeneration() {
+        return nextKey != null ? generation + 1 : generation;
+    }
+
+    /**
+     * Returns the key that decrypts data of the given generation.
+     *
+     * @throws GeneralSecurityException if the ring has no key of that generation
+     */
+    public SecretKey keyFor(EncryptedData data) throws GeneralSecurityException {
+        int dataGeneration = data.getKeyGeneration();
+        if (dataGeneration == generation) {
+            return currentKey;
+        }
+        if (nextKey != null && dataGeneration == generation + 1) {
+            return nextKey;
+        }
+        throw new GeneralSecurityException("No data key of generation " + dataGeneration);
+    }
+
+    /**
+     * Returns a ring that is rotating to nextKey.
+     */
+    public KeyRing startRotation(SecretKey nextKey) {
+        return new KeyRing(generation, currentKey, nextKey);
+    }
+
+    /**
+     * Returns the ring after a rotation, with the next key now current.
+     * The retired key is dropped.
+     */
+    public KeyRing finishRotation() {
+        if (nextKey == null) {
+            throw new IllegalStateException("No key rotation in progress");
+        }
+        return new KeyRing(generation + 1, nextKey, null);
+    }
+}
@@ -0,0 +1,178 @@
+package com.vaultguard.services;
+
+import com.vaultguard.model.EncryptedData;
+import com.vaultguard.model.VaultChange;
+import com.vaultguard.model.VaultEntries;
+import com.vaultguard.model.VaultEntry;
+import com.vaultguard.model.VaultFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A read-only view of a vault that decodes entries on demand. Opening it
+ * only reads the entry names and remembers where each entry's encrypted
+ * data starts; the IV and ciphertext of an entry are decoded when that
+ * entry is requested. For binary vaults the buffer is usually a memory
+ * mapping of the file, so untouched ciphertext is never even read.
+ *
+ * A view opened from a file is a snapshot: it keeps showing the vault as it
+ * was when it was opened, even if the file is replaced afterwards, and is
+ * safe to read from multiple threads. A view of a VaultFile reads through
+ * to that vault's entries instead.
+ */
+public class MappedVault {
+    private final String salt;
+    private final String kdfAlgorithm;
+    private final int kdfIterations;
+    private final EncryptedData wrappedKey;
+    private final int keyGeneration;
+    private final EncryptedData rotationKey;
+    private final ByteBuffer buffer;
+    private final int formatVersion;
+
+    //Entry name -> Integer offset into buffer, or EncryptedData for
+    //entries that came from a JSON vault or the change log
+    private final LinkedHashMap<String, Object> index;
+
+    //Set instead of buffer and index for a view of a decoded vault
+    private final VaultEntries entries;
+
+    private MappedVault(String salt, String kdfAlgorithm, int kdfIterations, EncryptedData wrappedKey,
+                        int keyGeneration, EncryptedData rotationKey, ByteBuffer buffer, int formatVersion,
+                        LinkedHashMap<String, Object> index, VaultEntries entries) {
+        this.salt = salt;
+        this.kdfAlgorithm = kdfAlgorithm;
+        this.kdfIterations = kdfIterations;
+        this.wrappedKey = wrappedKey;
+        this.keyGeneration = keyGeneration;
+        this.rotationKey = rotationKey;
+        this.buffer = buffer;
+        this.formatVersion = formatVersion;
+        this.index = index;
+        this.entries = entries;
+    }
+
+    /**
+     * Indexes a binary vault held in buffer.
+     */
+    static MappedVault ofBinary(ByteBuffer buffer, List<VaultChange> log) throws IOException {
+        ByteBuffer reader = buffer.duplicate();
+        BinaryVaultCodec.Header header = BinaryVaultCodec.readHeader(reader);
+        int expected = Math.min(header.entryCount, reader.remaining() / 16);
+        LinkedHashMap<String, Object> index = new LinkedHashMap<>(expected * 4 / 3 + 1);
+        for (int i = 0; i < header.entryCount; i++) {
+            String name = BinaryVaultCodec.readEntryName(reader);
+            index.putIfAbsent(name, reader.position());
+            BinaryVaultCodec.skipEncryptedData(reader, header.version);
+        }
+        applyLog(index, log);
+        return new MappedVault(header.salt, header.kdfAlgorithm, header.kdfIterations, header.wrappedKey,
+            header.keyGeneration, header.rotationKey, buffer, header.version, index, null);
+    }
+
+    /**
+     * Returns a view that reads through to an already decoded vault.
+     */
+    public static MappedVault ofVaultFile(VaultFile vaultFile) {
+        return new MappedVault(vaultFile.salt, vaultFile.kdfAlgorithm, vaultFile.kdfIterations, vaultFile.wrappedKey,
+            vaultFile.keyGeneration, vaultFile.rotationKey, null, 0, null, vaultFile.keys);
+    }
+
+    /**
+     * Returns a view that keeps showing the vault as it is now: this view
+     * if it was opened from a file, or else a copy of the entries of the
+     * VaultFile it reads through to.
+     */
+    public MappedVault snapshot() {
+        if (entries == null) return this;
+        LinkedHashMap<String, Object> copy = new LinkedHashMap<>(entries.size() * 4 / 3 + 1);
+        for (VaultEntry entry : entries) {
+            copy.put(entry.name, entry.encryptedKey);
+        }
+        return new MappedVault(salt, kdfAlgorithm, kdfIterations, wrappedKey, keyGeneration, rotationKey,
+            null, formatVersion, copy, null);
+    }
+
+    private static void applyLog(LinkedHashMap<String, Object> index, List<VaultChange> log) {
+        for (VaultChange change : log) {
+            if (change.getType() == VaultChange.Type.PUT) {
+                index.put(change.getName(), change.getEncryptedKey());
+            } else {
+                index.remove(change.getName());
+            }
+        }
+    }
+
+    public String getSalt() {
+        return salt;
+    }
+
+    public String getKdfAlgorithm() {
+        return kdfAlgorithm;
+    }
+
+    public int getKdfIterations() {
+        return kdfIterations;
+    }
+
+    public EncryptedData getWrappedKey() {
+        return wrappedKey;
+    }
+
+    public int getKeyGeneration() {
+        return keyGeneration;
+    }
+
+    public EncryptedData getRotationKey() {
+        return rotationKey;
+    }
+
+    /**
+     * Returns the entry names in vault order.
+     */
+    public List<String> names() {
+        if (entries != null) {
+            return entries.names();
+        }
+        return new ArrayList<>(index.keySet());
+    }
+
+    public boolean contains(String name) {
+        if (entries != null) {
+            return entries.contains(name);
+        }
+        return index.containsKey(name);
+    }
+
+    public int size() {
+        if (entries != null) {
+            return entries.size();
+        }
+        return index.size();
+    }
+
+    /**
+     * Decodes and returns the encrypted data of the named entry, or null
+     * if there is no such entry.
+     */
+    public EncryptedData get(String name) throws IOException {
+        if (entries != null) {
+            VaultEntry entry = entries.get(name);
+            return entry == null ? null : entry.encryptedKey;
+        }
+        Object location = index.get(name);
+        if (location == null) {
+            return null;
+        }
+        if (location instanceof EncryptedData) {
+            return (EncryptedData) location;
+        }
+        ByteBuffer reader = buffer.duplicate();
+        reader.position((Integer) location);
+        return BinaryVaultCodec.readEncryptedData(reader, formatVersion);
+    }
+}
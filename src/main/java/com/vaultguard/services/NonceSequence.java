@@ -0,0 +1,80 @@
+package com.vaultguard.services;
+
+import java.io.IOException;
+
+/**
+ * Hands out 96-bit AES-GCM nonces made of a 4-byte random prefix and an
+ * 8-byte counter, so every nonce is unique for as long as the counter is
+ * never reused. Counters are reserved in blocks through a Reserver, which
+ * persists the end of each block before any nonce from it is used; after a
+ * crash the unused rest of a block is skipped, never handed out again.
+ *
+ * Generating a nonce is an increment under a lock; only the first nonce of
+ * each block waits for the reservation to be written. Safe for use from
+ * multiple threads.
+ */
+public class NonceSequence {
+
+    public static final int PREFIX_LENGTH = 4;
+    public static final int NONCE_LENGTH = PREFIX_LENGTH + 8;
+
+    /**
+     * A reserved range of counters, all to be used with the same prefix.
+     */
+    public static class Block {
+        final byte[] prefix;
+        final long start;
+        final long end;
+
+        public Block(byte[] prefix, long start, long end) {
+            if (prefix.length != PREFIX_LENGTH) {
+                throw new IllegalArgumentException("Nonce prefix must be " + PREFIX_LENGTH + " bytes");
+            }
+            this.prefix = prefix.clone();
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public interface Reserver {
+        /**
+         * Durably reserves count counters that have never been reserved
+         * before, and returns them.
+         */
+        Block reserve(long count) throws IOException;
+    }
+
+    private final Reserver reserver;
+    private final long blockSize;
+
+    private Block block = null;
+    private long next = 0;
+
+    public NonceSequence(Reserver reserver, long blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.reserver = reserver;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns the next nonce.
+     *
+     * @throws IOException if a new block could not be reserved
+     */
+    public synchronized byte[] next() throws IOException {
+        if (block == null || next >= block.end) {
+            block = reserver.reserve(blockSize);
+            next = block.start;
+        }
+        long counter = next++;
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(block.prefix, 0, nonce, 0, PREFIX_LENGTH);
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_LENGTH - 1 - i] = (byte) (counter >>> (8 * i));
+        }
+        return nonce;
+    }
+}
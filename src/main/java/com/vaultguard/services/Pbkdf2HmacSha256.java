@@ -0,0 +1,109 @@
+package com.vaultguard.services;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * PBKDF2 with HMAC-SHA256 (RFC 8018), producing the same bytes as the JCE
+ * PBKDF2WithHmacSHA256 provider but built for high iteration counts.
+ *
+ * HMAC hashes a padded copy of the key before every message. The provider
+ * re-hashes both pads on each of its 2 * iterations HMAC calls, so every
+ * iteration costs four SHA-256 compressions. Here the digest states after
+ * the inner and outer pads are computed once per password and copied for
+ * each HMAC, so an iteration costs two compressions. The digests are the
+ * platform's SHA-256, which HotSpot compiles to the CPU's SHA instructions
+ * where available; the working buffers are reused across iterations.
+ */
+final class Pbkdf2HmacSha256 {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int BLOCK_LENGTH = 64;
+    private static final int DIGEST_LENGTH = 32;
+
+    private Pbkdf2HmacSha256() {
+    }
+
+    /**
+     * Derives keyLength bytes from the password bytes and salt.
+     */
+    static byte[] derive(byte[] password, byte[] salt, int iterations, int keyLength) throws GeneralSecurityException {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iteration count must be positive");
+        }
+        MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+
+        //Keys longer than a block are hashed first, as HMAC requires
+        byte[] key = password.length > BLOCK_LENGTH ? digest.digest(password) : password;
+        byte[] pad = new byte[BLOCK_LENGTH];
+        MessageDigest inner = keyed(digest, key, 0x36, pad);
+        MessageDigest outer = keyed(digest, key, 0x5c, pad);
+        Arrays.fill(pad, (byte) 0);
+        if (key != password) {
+            Arrays.fill(key, (byte) 0);
+        }
+
+        byte[] result = new byte[keyLength];
+        byte[] u = new byte[DIGEST_LENGTH];
+        byte[] t = new byte[DIGEST_LENGTH];
+        byte[] blockIndex = new byte[4];
+        for (int block = 1, offset = 0; offset < keyLength; block++, offset += DIGEST_LENGTH) {
+            blockIndex[0] = (byte) (block >>> 24);
+            blockIndex[1] = (byte) (block >>> 16);
+            blockIndex[2] = (byte) (block >>> 8);
+            blockIndex[3] = (byte) block;
+
+            //U1 = HMAC(password, salt || INT(block))
+            MessageDigest md = copy(inner);
+            md.update(salt);
+            md.update(blockIndex);
+            md.digest(u, 0, DIGEST_LENGTH);
+            md = copy(outer);
+            md.update(u);
+            md.digest(u, 0, DIGEST_LENGTH);
+            System.arraycopy(u, 0, t, 0, DIGEST_LENGTH);
+
+            //Uj = HMAC(password, Uj-1), T = U1 ^ U2 ^ ... ^ Uc
+            for (int i = 1; i < iterations; i++) {
+                md = copy(inner);
+                md.update(u);
+                md.digest(u, 0, DIGEST_LENGTH);
+                md = copy(outer);
+                md.update(u);
+                md.digest(u, 0, DIGEST_LENGTH);
+                for (int j = 0; j < DIGEST_LENGTH; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            System.arraycopy(t, 0, result, offset, Math.min(DIGEST_LENGTH, keyLength - offset));
+        }
+
+        Arrays.fill(u, (byte) 0);
+        Arrays.fill(t, (byte) 0);
+        return result;
+    }
+
+    /**
+     * Returns a digest that has consumed the key, zero padded to a block
+     * and XORed with padByte.
+     */
+    private static MessageDigest keyed(MessageDigest digest, byte[] key, int padByte, byte[] pad) throws GeneralSecurityException {
+        for (int i = 0; i < BLOCK_LENGTH; i++) {
+            pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ padByte);
+        }
+        MessageDigest keyed = copy(digest);
+        keyed.reset();
+        keyed.update(pad);
+        return keyed;
+    }
+
+    private static MessageDigest copy(MessageDigest digest) throws GeneralSecurityException {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new GeneralSecurityException(DIGEST_ALGORITHM + " digest cannot be copied", e);
+        }
+    }
+}
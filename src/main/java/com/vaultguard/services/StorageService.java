@@ -2,34 +2,841 @@ package com.vaultguard.services;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.vaultguard.model.VaultChange;
 import com.vaultguard.model.VaultFile;
+import com.vaultguard.model.VaultHeader;
+import com.vaultguard.model.VaultStamp;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class StorageService {
 
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    /**
+     * On-disk vault formats. JSON vaults live in <username>.json, binary
+     * vaults (see BinaryVaultCodec) in <username>.vault.
+     */
+    public enum Format {
+        JSON(".json"),
+        BINARY(".vault");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * Expected version for saves that overwrite whatever version is current.
+     */
+    public static final long ANY_VERSION = -1;
+
+    private static final long DEFAULT_COMPACTION_THRESHOLD = 64 * 1024;
+
+    //Smaller files are cheaper to read into the heap than to map
+    private static final long MIN_MAPPED_SIZE = 64 * 1024;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private static final SecureRandom NONCE_PREFIX_RANDOM = new SecureRandom();
+
+    //File locks belong to the whole JVM, so threads (and StorageService
+    //instances) sharing a nonce file also need a monitor per file
+    private static final Map<Path, Object> NONCE_FILE_MONITORS = new ConcurrentHashMap<>();
+
+    //Writes to a vault hold one of these locks, picked by username, so
+    //writers of the same vault queue up in this JVM (whatever the
+    //StorageService instance) while most other users' writes go ahead.
+    //The <username>.lock file lock extends that to other processes.
+    private static final int VAULT_LOCK_STRIPES = 64;
+    private static final ReentrantLock[] VAULT_LOCKS = new ReentrantLock[VAULT_LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < VAULT_LOCK_STRIPES; i++) {
+            VAULT_LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    //Enough for any header written by this version; larger ones are re-read
+    private static final int HEADER_READ_SIZE = 1024;
+
+    private final Gson logGson = VaultTypeAdapters.register(new GsonBuilder()).create();
     private final Path storageDir;
 
+    private Format format = Format.BINARY;
+    private boolean prettyPrint = true;
+    private boolean logStructured = false;
+    private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private boolean groupCommit = false;
+    private long groupCommitWindowMillis = 0;
+    private final Map<String, GroupCommitter<VaultWrite>> committers = new ConcurrentHashMap<>();
+
+    //Version each vault was left at by this instance's last write, so the
+    //next write only re-reads the vault if someone else wrote in between
+    private final Map<String, KnownVersion> knownVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Streams a full vault file to an output stream.
+     */
+    private interface SnapshotWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A pending write for one vault: either a full snapshot of the vault
+     * file or records to append to its change log. Snapshots are only
+     * serialized when written, so snapshots superseded within a group
+     * commit batch cost nothing.
+     *
+     * The write applies only if the vault is at expectedVersion when its
+     * turn comes. Afterwards version holds the version it produced, or for
+     * a rejected write the version that was found instead.
+     */
+    private static class VaultWrite {
+        final VaultFile snapshot;
+        final byte[] logRecords;
+        final int recordCount;
+        final long expectedVersion;
+        long version;
+        boolean rejected = false;
+
+        VaultWrite(VaultFile snapshot, byte[] logRecords, int recordCount, long expectedVersion) {
+            this.snapshot = snapshot;
+            this.logRecords = logRecords;
+            this.recordCount = recordCount;
+            this.expectedVersion = expectedVersion;
+        }
+    }
+
+    private static class KnownVersion {
+        final VaultStamp stamp;
+        final long version;
+
+        KnownVersion(VaultStamp stamp, long version) {
+            this.stamp = stamp;
+            this.version = version;
+        }
+    }
+
     public StorageService(String storageDir) {
         this.storageDir = Path.of(storageDir);
     }
 
+    /**
+     * Sets the format vaults are written in. Vaults in the other format are
+     * still read, and are migrated to this format the first time they load.
+     */
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets whether JSON vaults are written indented. Compact output is
+     * smaller and faster to write; both read back the same.
+     */
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Enables or disables the log-structured storage mode. When enabled,
+     * saveChanges appends each change to <username>.log instead of
+     * rewriting the vault file, and the log is folded back into the
+     * vault file once it grows past the compaction threshold.
+     */
+    public void setLogStructured(boolean logStructured) {
+        this.logStructured = logStructured;
+    }
+
+    /**
+     * Sets the minimum log size in bytes before a compaction is triggered.
+     * The log is also allowed to grow as large as the vault file itself,
+     * so that compaction cost stays proportional to the appended data.
+     */
+    public void setCompactionThreshold(long compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Enables or disables group commit. When enabled, saves for the same
+     * user that arrive while another save is being written (or within the
+     * commit window) are written together and share one fsync.
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    /**
+     * Sets how long a group commit leader waits for more saves to join its
+     * batch. Zero only coalesces saves that arrive during a write.
+     */
+    public void setGroupCommitWindowMillis(long groupCommitWindowMillis) {
+        this.groupCommitWindowMillis = groupCommitWindowMillis;
+        committers.clear();
+    }
+
+    /**
+     * Loads the user's vault, whichever format it is stored in. A vault
+     * found in the other format is rewritten in the configured one. The
+     * vault's version counts the changes in the log as well as the snapshot.
+     *
+     * @return VaultFile, or null if the user has no vault
+     */
     public VaultFile loadVault(String username) throws IOException {
-        Path filePath = storageDir.resolve(username + ".json");
-        if (!Files.exists(filePath)) {
+        Path filePath = existingVaultPath(username);
+        if (filePath == null) {
+            return null;
+        }
+        VaultFile vaultFile;
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            vaultFile = readVaultFile(channel);
+        } catch (NoSuchFileException e) {
             return null;
         }
-        String json = Files.readString(filePath);
-        return gson.fromJson(json, VaultFile.class);
+        if (vaultFile == null) {
+            throw new IOException("Empty vault file " + filePath);
+        }
+
+        List<VaultChange> log = readLog(username);
+        for (VaultChange change : log) {
+            change.applyTo(vaultFile.keys);
+        }
+        vaultFile.version += log.size();
+
+        if (!filePath.equals(vaultPath(username))) {
+            try {
+                saveVault(username, vaultFile, vaultFile.version);
+            } catch (VaultConflictException e) {
+                //Changed while loading; the caller's next save will conflict
+                //too, and migrate it then
+            }
+        }
+        return vaultFile;
+    }
+
+    /**
+     * Reads only the header of the user's vault: the first few hundred bytes
+     * of a binary vault, or the fields before the entries of a JSON vault.
+     * The header only changes with a full snapshot, so changes waiting in
+     * the log do not affect it.
+     *
+     * @return VaultHeader, or null if the user has no vault
+     */
+    public VaultHeader readVaultHeader(String username) throws IOException {
+        Path filePath = existingVaultPath(username);
+        if (filePath == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            return readVaultHeader(channel);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reserves count GCM nonce counters for the user's vault. The nonce
+     * prefix and the next unreserved counter live in a small sidecar file,
+     * <username>.nonce, which is updated in place under a file lock, so
+     * processes sharing the vault get disjoint blocks. The new state is a
+     * single 12-byte write forced to disk before the block is returned, so
+     * a crash can only waste counters, never reuse them.
+     *
+     * If the file is lost a new random prefix is chosen, which keeps nonces
+     * unique unless the same 32-bit prefix comes up again.
+     */
+    public NonceSequence.Block reserveNonces(String username, long count) throws IOException {
+        Files.createDirectories(storageDir);
+        Path path = noncePath(username);
+        boolean created = !Files.exists(path);
+        NonceSequence.Block block;
+        synchronized (NONCE_FILE_MONITORS.computeIfAbsent(path.toAbsolutePath().normalize(), file -> new Object())) {
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    block = reserveNonces(channel, username, count);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        if (created) {
+            syncDirectory();
+        }
+        return block;
+    }
+
+    private NonceSequence.Block reserveNonces(FileChannel channel, String username, long count) throws IOException {
+        ByteBuffer state = ByteBuffer.allocate(NonceSequence.NONCE_LENGTH);
+        readFully(channel, state);
+
+        byte[] prefix = new byte[NonceSequence.PREFIX_LENGTH];
+        long start = 0;
+        if (state.remaining() == NonceSequence.NONCE_LENGTH) {
+            state.get(prefix);
+            start = state.getLong();
+        } else {
+            NONCE_PREFIX_RANDOM.nextBytes(prefix);
+        }
+        if (start < 0 || count > Long.MAX_VALUE - start) {
+            throw new IOException("GCM nonce counter exhausted for " + username);
+        }
+        NonceSequence.Block block = new NonceSequence.Block(prefix, start, start + count);
+
+        state.clear();
+        state.put(prefix).putLong(block.end).flip();
+        channel.position(0);
+        while (state.hasRemaining()) {
+            channel.write(state);
+        }
+        channel.force(false);
+        return block;
+    }
+
+    /**
+     * Opens a read-only view of the user's vault that decodes entries only
+     * when they are requested. Binary vaults are memory-mapped; JSON vaults
+     * are parsed in full, since they cannot be indexed without parsing.
+     *
+     * @return MappedVault, or null if the user has no vault
+     */
+    public MappedVault mapVault(String username) throws IOException {
+        Path filePath = existingVaultPath(username);
+        if (filePath == null) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MIN_MAPPED_SIZE) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.wrap(Files.readAllBytes(filePath));
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (buffer.remaining() >= 4 && buffer.getInt(0) == BinaryVaultCodec.MAGIC) {
+            return MappedVault.ofBinary(buffer, readLog(username));
+        }
+        VaultFile vaultFile = loadVault(username);
+        return vaultFile == null ? null : MappedVault.ofVaultFile(vaultFile);
     }
 
+    /**
+     * Writes the whole vault in the configured format, whatever version is
+     * current. The file is replaced atomically and is durable once this
+     * returns. Any change log is discarded afterwards, since the vault
+     * passed in already contains it.
+     */
     public void saveVault(String username, VaultFile vaultFile) throws IOException {
-        Path filePath = storageDir.resolve(username + ".json");
+        saveVault(username, vaultFile, ANY_VERSION);
+    }
+
+    /**
+     * Writes the whole vault like saveVault(username, vaultFile), provided
+     * the vault on disk is still at expectedVersion. On success
+     * vaultFile.version is set to the new version.
+     *
+     * @throws VaultConflictException if the vault has been saved since
+     * expectedVersion; nothing is written
+     */
+    public void saveVault(String username, VaultFile vaultFile, long expectedVersion) throws IOException {
+        VaultWrite write = new VaultWrite(vaultFile, null, 0, expectedVersion);
+        commit(username, write);
+        vaultFile.version = write.version;
+    }
+
+    /**
+     * Persists the given changes, which must already be applied to vaultFile,
+     * whatever version is current.
+     */
+    public void saveChanges(String username, VaultFile vaultFile, List<VaultChange> changes) throws IOException {
+        saveChanges(username, vaultFile, changes, ANY_VERSION);
+    }
+
+    /**
+     * Persists the given changes, which must already be applied to vaultFile,
+     * provided the vault on disk is still at expectedVersion. In
+     * log-structured mode only the changes are appended to the log, and each
+     * one advances the version; otherwise the whole vault is saved. On
+     * success vaultFile.version is set to the new version.
+     *
+     * @throws VaultConflictException if the vault has been saved since
+     * expectedVersion; nothing is written
+     */
+    public void saveChanges(String username, VaultFile vaultFile, List<VaultChange> changes,
+                            long expectedVersion) throws IOException {
+        Path filePath = existingVaultPath(username);
+        if (!logStructured || filePath == null) {
+            saveVault(username, vaultFile, expectedVersion);
+            return;
+        }
+
+        StringBuilder records = new StringBuilder();
+        for (VaultChange change : changes) {
+            records.append(logGson.toJson(change)).append('\n');
+        }
+        VaultWrite write = new VaultWrite(null, records.toString().getBytes(StandardCharsets.UTF_8),
+            changes.size(), expectedVersion);
+        commit(username, write);
+        vaultFile.version = write.version;
+
+        if (Files.size(logPath(username)) >= Math.max(compactionThreshold, Files.size(filePath))) {
+            try {
+                saveVault(username, vaultFile, vaultFile.version);
+            } catch (VaultConflictException e) {
+                //Someone else saved since, and vaultFile no longer has
+                //everything; a later save compacts the log instead
+            }
+        }
+    }
+
+    /**
+     * Folds the user's change log into the vault file.
+     */
+    public void compact(String username) throws IOException {
+        if (!Files.exists(logPath(username))) {
+            return;
+        }
+        while (true) {
+            VaultFile vaultFile = loadVault(username);
+            if (vaultFile == null) {
+                return;
+            }
+            try {
+                saveVault(username, vaultFile, vaultFile.version);
+                return;
+            } catch (VaultConflictException e) {
+                //Changes were appended meanwhile; fold them in as well
+            }
+        }
+    }
+
+    /**
+     * Returns a stamp for the current version of the user's vault file
+     * and change log, or null if the vault does not exist. The stamp
+     * changes whenever either file is written, including by another process.
+     */
+    public VaultStamp getVaultStamp(String username) throws IOException {
+        Path filePath = existingVaultPath(username);
+        VaultStamp stamp = filePath == null ? null : fileStamp(filePath);
+        if (stamp == null) {
+            return null;
+        }
+        VaultStamp logStamp = fileStamp(logPath(username));
+        return logStamp == null ? stamp : stamp.withLog(logStamp);
+    }
+
+    private void commit(String username, VaultWrite write) throws IOException {
+        if (!groupCommit) {
+            writeBatch(username, List.of(write));
+        } else {
+            committers.computeIfAbsent(username, name ->
+                new GroupCommitter<>(batch -> writeBatch(name, batch), groupCommitWindowMillis)
+            ).commit(write);
+        }
+        if (write.rejected) {
+            throw new VaultConflictException(username, write.expectedVersion, write.version);
+        }
+    }
+
+    /**
+     * Writes a batch of writes for one vault in order, holding the vault's
+     * lock in this JVM and its lock file against other processes. Each
+     * write is first checked against the version left by the writes before
+     * it, and rejected if it expected another.
+     */
+    private void writeBatch(String username, List<VaultWrite> batch) throws IOException {
         Files.createDirectories(storageDir); //incase directory doesn't exist already
-        String json = gson.toJson(vaultFile);
-        Files.writeString(filePath, json);
+
+        ReentrantLock lock = vaultLock(username);
+        lock.lock();
+        try (FileChannel channel = FileChannel.open(lockPath(username),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock fileLock = channel.lock();
+            try {
+                long version = currentVersion(username);
+                List<VaultWrite> accepted = new ArrayList<>(batch.size());
+                for (VaultWrite write : batch) {
+                    if (write.expectedVersion != ANY_VERSION && write.expectedVersion != version) {
+                        write.rejected = true;
+                        write.version = version;
+                        continue;
+                    }
+                    version += write.snapshot != null ? 1 : write.recordCount;
+                    write.version = version;
+                    accepted.add(write);
+                }
+                if (!accepted.isEmpty()) {
+                    writeAccepted(username, accepted);
+                    knownVersions.put(username, new KnownVersion(getVaultStamp(username), version));
+                }
+            } finally {
+                fileLock.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes accepted writes for one vault in order. Log records queued
+     * before the last snapshot are already part of it, so only the last
+     * snapshot and the records after it reach the disk. A snapshot in one
+     * format supersedes any vault file left over in the other format.
+     */
+    private void writeAccepted(String username, List<VaultWrite> batch) throws IOException {
+        int lastSnapshot = -1;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).snapshot != null) {
+                lastSnapshot = i;
+            }
+        }
+        if (lastSnapshot >= 0) {
+            VaultWrite snapshot = batch.get(lastSnapshot);
+            snapshot.snapshot.version = snapshot.version;
+            writeAtomically(vaultPath(username), out -> writeVaultFile(snapshot.snapshot, out));
+            for (Format other : Format.values()) {
+                if (other != format) {
+                    Files.deleteIfExists(storageDir.resolve(username + other.extension));
+                }
+            }
+            Files.deleteIfExists(logPath(username));
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (int i = lastSnapshot + 1; i < batch.size(); i++) {
+            records.writeBytes(batch.get(i).logRecords);
+        }
+        if (records.size() > 0) {
+            appendToLog(username, records.toByteArray());
+        }
+    }
+
+    /**
+     * Replaces target with the written data so that a crash leaves either
+     * the old or the new file: the data is streamed to a temp file in the
+     * same directory, forced to disk, renamed over the target, and the
+     * directory entry is then forced as well.
+     */
+    private void writeAtomically(Path target, SnapshotWriter writer) throws IOException {
+        Path tempPath = Files.createTempFile(storageDir, target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), IO_BUFFER_SIZE);
+                writer.writeTo(out);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tempPath, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        syncDirectory();
+    }
+
+    /**
+     * Returns the version of the user's vault on disk: the version in its
+     * header plus one per record in its log, or 0 if there is no vault.
+     * Called with the vault's locks held.
+     */
+    private long currentVersion(String username) throws IOException {
+        VaultStamp stamp = getVaultStamp(username);
+        if (stamp == null) {
+            return 0;
+        }
+        KnownVersion known = knownVersions.get(username);
+        if (known != null && stamp.equals(known.stamp)) {
+            return known.version;
+        }
+        VaultHeader header = readVaultHeader(username);
+        return header == null ? 0 : header.getVersion() + readLog(username).size();
+    }
+
+    private static ReentrantLock vaultLock(String username) {
+        return VAULT_LOCKS[Math.floorMod(username.hashCode(), VAULT_LOCK_STRIPES)];
+    }
+
+    /**
+     * Appends records to the user's log and forces them to disk. A crash
+     * during an earlier append can leave part of a record, without its
+     * newline, at the end of the log; it is cut off first, as records
+     * glued onto it could never be read. Called with the vault's locks
+     * held.
+     */
+    private void appendToLog(String username, byte[] records) throws IOException {
+        Path target = logPath(username);
+        boolean created = !Files.exists(target);
+        try (FileChannel channel = FileChannel.open(target,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = channel.size();
+            if (end > 0 && !endsWithNewline(channel, end)) {
+                ByteBuffer log = ByteBuffer.allocate(Math.toIntExact(end));
+                readFully(channel, log);
+                end = parseLog(log.array(), log.limit(), null);
+                channel.truncate(end);
+            }
+            channel.position(end);
+            writeFully(channel, records);
+            channel.force(false);
+        }
+        if (created) {
+            syncDirectory();
+        }
+    }
+
+    private boolean endsWithNewline(FileChannel channel, long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        return last.get(0) == '\n';
+    }
+
+    /**
+     * Reads from the channel until buffer is full or the file ends, then
+     * flips buffer for reading.
+     */
+    private void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(FileChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Forces the storage directory so that renames and new files survive
+     * a crash. Some platforms (Windows) cannot open a directory for this;
+     * there the rename itself is the best available guarantee.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(storageDir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //Not supported on this platform
+        }
+    }
+
+    /**
+     * Reads the records of the user's change log in order. Every append
+     * writes whole newline-terminated records, so a last line without its
+     * newline is an interrupted append and is ignored, as is everything
+     * from a record that cannot be parsed.
+     */
+    private List<VaultChange> readLog(String username) throws IOException {
+        List<VaultChange> changes = new ArrayList<>();
+        byte[] log;
+        try {
+            log = Files.readAllBytes(logPath(username));
+        } catch (NoSuchFileException e) {
+            //No log, or compacted away; in the latter case the vault stamp
+            //has changed too, so cached readers will reload
+            return changes;
+        }
+        parseLog(log, log.length, changes);
+        return changes;
+    }
+
+    /**
+     * Parses the complete records at the start of log, adding them to
+     * changes unless it is null.
+     *
+     * @return the length of those records, where the next one belongs
+     */
+    private long parseLog(byte[] log, int length, List<VaultChange> changes) {
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && log[end] != '\n') {
+                end++;
+            }
+            if (end == length) {
+                break; //no newline: an interrupted append
+            }
+            VaultChange change = parseLogRecord(new String(log, start, end - start, StandardCharsets.UTF_8));
+            if (change == null) {
+                break;
+            }
+            if (changes != null) {
+                changes.add(change);
+            }
+            start = end + 1;
+        }
+        return start;
+    }
+
+    private VaultChange parseLogRecord(String line) {
+        VaultChange change;
+        try {
+            change = logGson.fromJson(line, VaultChange.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+        if (change == null || change.getType() == null || change.getName() == null) {
+            return null;
+        }
+        if (change.getType() == VaultChange.Type.PUT && change.getEncryptedKey() == null) {
+            return null;
+        }
+        return change;
+    }
+
+    private VaultStamp fileStamp(Path path) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new VaultStamp(
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                attributes.size(),
+                attributes.fileKey()
+            );
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a vault file of either format, streaming JSON straight from
+     * the channel rather than reading it into a String first.
+     */
+    private VaultHeader readVaultHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_READ_SIZE);
+        readFully(channel, buffer);
+
+        if (buffer.remaining() >= 4 && buffer.getInt(0) == BinaryVaultCodec.MAGIC) {
+            while (true) {
+                try {
+                    BinaryVaultCodec.Header header = BinaryVaultCodec.readHeader(buffer.duplicate());
+                    return new VaultHeader(header.version, header.salt, header.kdfAlgorithm, header.kdfIterations,
+                        header.vaultVersion, header.keyGeneration, header.wrappedKey, header.rotationKey, header.entryCount);
+                } catch (IOException e) {
+                    //A header with unusually long fields needs a larger read,
+                    //unless the whole file has been read already
+                    if (buffer.limit() < buffer.capacity()) {
+                        throw e;
+                    }
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                    channel.position(0);
+                    readFully(channel, buffer);
+                }
+            }
+        }
+
+        channel.position(0);
+        JsonReader reader = new JsonReader(new BufferedReader(
+            Channels.newReader(channel, StandardCharsets.UTF_8), HEADER_READ_SIZE));
+        try {
+            return VaultTypeAdapters.readVaultHeader(reader);
+        } catch (IllegalStateException | JsonParseException e) {
+            throw new IOException("Corrupt JSON vault file", e);
+        }
+    }
+
+    private VaultFile readVaultFile(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        readFully(channel, magic);
+        channel.position(0);
+
+        if (magic.remaining() == 4 && magic.getInt(0) == BinaryVaultCodec.MAGIC) {
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+            readFully(channel, data);
+            return BinaryVaultCodec.decode(data);
+        }
+
+        JsonReader reader = new JsonReader(new BufferedReader(
+            Channels.newReader(channel, StandardCharsets.UTF_8), IO_BUFFER_SIZE));
+        try {
+            return VaultTypeAdapters.VAULT_FILE.read(reader);
+        } catch (IllegalStateException | JsonParseException e) {
+            throw new IOException("Corrupt JSON vault file", e);
+        }
+    }
+
+    private void writeVaultFile(VaultFile vaultFile, OutputStream out) throws IOException {
+        if (format == Format.BINARY) {
+            BinaryVaultCodec.encode(vaultFile, out);
+            return;
+        }
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+            new OutputStreamWriter(out, StandardCharsets.UTF_8), IO_BUFFER_SIZE));
+        if (prettyPrint) {
+            writer.setIndent("  ");
+        }
+        VaultTypeAdapters.VAULT_FILE.write(writer, vaultFile);
+        writer.flush();
+    }
+
+    /**
+     * Path of the vault file in the configured format.
+     */
+    private Path vaultPath(String username) {
+        return storageDir.resolve(username + format.extension);
+    }
+
+    /**
+     * Path of the user's vault file, preferring the configured format,
+     * or null if the user has no vault in any format.
+     */
+    private Path existingVaultPath(String username) {
+        Path preferred = vaultPath(username);
+        if (Files.exists(preferred)) {
+            return preferred;
+        }
+        for (Format other : Format.values()) {
+            Path candidate = storageDir.resolve(username + other.extension);
+            if (Files.exists(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private Path logPath(String username) {
+        return storageDir.resolve(username + ".log");
+    }
+
+    private Path lockPath(String username) {
+        return storageDir.resolve(username + ".lock");
+    }
+
+    private Path noncePath(String username) {
+        return storageDir.resolve(username + ".nonce");
     }
 }
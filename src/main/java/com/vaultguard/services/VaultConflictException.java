@@ -0,0 +1,30 @@
+package com.vaultguard.services;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a save expects a version of the vault that is no longer the
+ * current one, because another writer (a thread, a session or another
+ * process) saved in between. Nothing was written; the caller can reload the
+ * vault, reapply its change and save again.
+ */
+public class VaultConflictException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long expectedVersion;
+    private final long actualVersion;
+
+    public VaultConflictException(String username, long expectedVersion, long actualVersion) {
+        super("Vault of " + username + " is at version " + actualVersion + ", not " + expectedVersion);
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public long getActualVersion() {
+        return actualVersion;
+    }
+}
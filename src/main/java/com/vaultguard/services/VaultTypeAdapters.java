@@ -0,0 +1,362 @@
+package com.vaultguard.services;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.vaultguard.model.EncryptedData;
+import com.vaultguard.model.VaultChange;
+import com.vaultguard.model.VaultEntry;
+import com.vaultguard.model.VaultFile;
+import com.vaultguard.model.VaultHeader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Hand-written Gson adapters for the vault model, so that loading and saving
+ * stream straight between JSON tokens and objects without reflection. They
+ * read and write exactly the shape Gson's reflective adapters produced:
+ * null fields are left out and unknown fields are skipped. Vaults written
+ * before the KDF fields existed read back with the legacy KDF parameters.
+ * An entry's key generation is only written when it is not 0.
+ */
+public final class VaultTypeAdapters {
+
+    public static final TypeAdapter<EncryptedData> ENCRYPTED_DATA = new TypeAdapter<EncryptedData>() {
+        @Override
+        public void write(JsonWriter out, EncryptedData value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "iv", value.getIv());
+            writeString(out, "ciphertext", value.getCiphertext());
+            if (value.getKeyGeneration() != 0) {
+                out.name("keyGeneration").value(value.getKeyGeneration());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public EncryptedData read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String iv = null;
+            String ciphertext = null;
+            int keyGeneration = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "iv":
+                        iv = readString(in);
+                        break;
+                    case "ciphertext":
+                        ciphertext = readString(in);
+                        break;
+                    case "keyGeneration":
+                        keyGeneration = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new EncryptedData(iv, ciphertext).withKeyGeneration(keyGeneration);
+        }
+    };
+
+    public static final TypeAdapter<VaultEntry> VAULT_ENTRY = new TypeAdapter<VaultEntry>() {
+        @Override
+        public void write(JsonWriter out, VaultEntry value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "name", value.name);
+            if (value.encryptedKey != null) {
+                out.name("encryptedKey");
+                ENCRYPTED_DATA.write(out, value.encryptedKey);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public VaultEntry read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String name = null;
+            EncryptedData encryptedKey = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name":
+                        name = readString(in);
+                        break;
+                    case "encryptedKey":
+                        encryptedKey = ENCRYPTED_DATA.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new VaultEntry(name, encryptedKey);
+        }
+    };
+
+    public static final TypeAdapter<VaultFile> VAULT_FILE = new TypeAdapter<VaultFile>() {
+        @Override
+        public void write(JsonWriter out, VaultFile value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "salt", value.salt);
+            writeString(out, "kdfAlgorithm", value.kdfAlgorithm);
+            out.name("kdfIterations").value(value.kdfIterations);
+            out.name("version").value(value.version);
+            out.name("keyGeneration").value(value.keyGeneration);
+            if (value.wrappedKey != null) {
+                out.name("wrappedKey");
+                ENCRYPTED_DATA.write(out, value.wrappedKey);
+            }
+            if (value.rotationKey != null) {
+                out.name("rotationKey");
+                ENCRYPTED_DATA.write(out, value.rotationKey);
+            }
+            if (value.keys != null) {
+                out.name("keys");
+                out.beginArray();
+                for (VaultEntry entry : value.keys) {
+                    VAULT_ENTRY.write(out, entry);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public VaultFile read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            VaultFile vaultFile = new VaultFile(null, new ArrayList<>());
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "salt":
+                        vaultFile.salt = readString(in);
+                        break;
+                    case "kdfAlgorithm":
+                        vaultFile.kdfAlgorithm = readString(in);
+                        break;
+                    case "kdfIterations":
+                        vaultFile.kdfIterations = in.nextInt();
+                        break;
+                    case "version":
+                        vaultFile.version = in.nextLong();
+                        break;
+                    case "keyGeneration":
+                        vaultFile.keyGeneration = in.nextInt();
+                        break;
+                    case "wrappedKey":
+                        vaultFile.wrappedKey = ENCRYPTED_DATA.read(in);
+                        break;
+                    case "rotationKey":
+                        vaultFile.rotationKey = ENCRYPTED_DATA.read(in);
+                        break;
+                    case "keys":
+                        readEntries(in, vaultFile);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return vaultFile;
+        }
+
+        private void readEntries(JsonReader in, VaultFile vaultFile) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull(); //treated as no entries, like skipEntries
+                return;
+            }
+            in.beginArray();
+            while (in.hasNext()) {
+                VaultEntry entry = VAULT_ENTRY.read(in);
+                if (entry != null) {
+                    vaultFile.keys.add(entry);
+                }
+            }
+            in.endArray();
+        }
+    };
+
+    public static final TypeAdapter<VaultChange> VAULT_CHANGE = new TypeAdapter<VaultChange>() {
+        @Override
+        public void write(JsonWriter out, VaultChange value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "type", value.getType().name());
+            writeString(out, "name", value.getName());
+            if (value.getEncryptedKey() != null) {
+                out.name("encryptedKey");
+                ENCRYPTED_DATA.write(out, value.getEncryptedKey());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public VaultChange read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String type = null;
+            String name = null;
+            EncryptedData encryptedKey = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "type":
+                        type = readString(in);
+                        break;
+                    case "name":
+                        name = readString(in);
+                        break;
+                    case "encryptedKey":
+                        encryptedKey = ENCRYPTED_DATA.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            //Incomplete records are reported as null
+            if (name == null) {
+                return null;
+            }
+            if ("PUT".equals(type) && encryptedKey != null) {
+                return VaultChange.put(new VaultEntry(name, encryptedKey));
+            }
+            if ("DELETE".equals(type)) {
+                return VaultChange.delete(name);
+            }
+            return null;
+        }
+    };
+
+    private VaultTypeAdapters() {
+    }
+
+    /**
+     * Reads the fields of a JSON vault that come before its entries. Reading
+     * stops at "keys" once the wrapped key has been seen, which is always
+     * the case for vaults written by VAULT_FILE. Otherwise (legacy vaults,
+     * or fields in another order) the entries are skipped without being
+     * decoded, counted, and reading goes on.
+     */
+    public static VaultHeader readVaultHeader(JsonReader in) throws IOException {
+        String salt = null;
+        String kdfAlgorithm = VaultFile.LEGACY_KDF_ALGORITHM;
+        int kdfIterations = VaultFile.LEGACY_KDF_ITERATIONS;
+        long version = 0;
+        int keyGeneration = 0;
+        EncryptedData wrappedKey = null;
+        EncryptedData rotationKey = null;
+        int entryCount = -1;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "salt":
+                    salt = readString(in);
+                    break;
+                case "kdfAlgorithm":
+                    kdfAlgorithm = readString(in);
+                    break;
+                case "kdfIterations":
+                    kdfIterations = in.nextInt();
+                    break;
+                case "version":
+                    version = in.nextLong();
+                    break;
+                case "keyGeneration":
+                    keyGeneration = in.nextInt();
+                    break;
+                case "wrappedKey":
+                    wrappedKey = ENCRYPTED_DATA.read(in);
+                    break;
+                case "rotationKey":
+                    rotationKey = ENCRYPTED_DATA.read(in);
+                    break;
+                case "keys":
+                    if (wrappedKey != null) {
+                        return new VaultHeader(VaultHeader.JSON_FORMAT_VERSION, salt, kdfAlgorithm, kdfIterations,
+                            version, keyGeneration, wrappedKey, rotationKey, -1);
+                    }
+                    entryCount = skipEntries(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new VaultHeader(VaultHeader.JSON_FORMAT_VERSION, salt, kdfAlgorithm, kdfIterations,
+            version, keyGeneration, wrappedKey, rotationKey, entryCount);
+    }
+
+    private static int skipEntries(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            in.skipValue();
+            count++;
+        }
+        in.endArray();
+        return count;
+    }
+
+    /**
+     * Registers the vault model adapters with builder.
+     */
+    public static GsonBuilder register(GsonBuilder builder) {
+        return builder
+            .registerTypeAdapter(EncryptedData.class, ENCRYPTED_DATA)
+            .registerTypeAdapter(VaultEntry.class, VAULT_ENTRY)
+            .registerTypeAdapter(VaultFile.class, VAULT_FILE)
+            .registerTypeAdapter(VaultChange.class, VAULT_CHANGE);
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+}
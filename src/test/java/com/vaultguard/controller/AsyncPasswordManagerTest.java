@@ -0,0 +1,213 @@
+package com.vaultguard.controller;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+
+import com.vaultguard.model.VaultEntry;
+import com.vaultguard.model.VaultFile;
+import com.vaultguard.services.EncryptionService;
+import com.vaultguard.services.StorageService;
+
+public class AsyncPasswordManagerTest {
+
+    private static final String TEST_VAULT_PATH = "./test-async-vaults";
+
+    private AsyncPasswordManager async;
+
+    @BeforeEach
+    public void setup() {
+        async = new AsyncPasswordManager(new PasswordManager(TEST_VAULT_PATH), 1, 4);
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        async.close();
+        Path directory = Paths.get(TEST_VAULT_PATH);
+        if (Files.exists(directory)) {
+            deleteDirectoryRecursively(directory);
+        }
+    }
+
+    private void deleteDirectoryRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    deleteDirectoryRecursively(entry);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    void testRegisterAndLogin() throws Exception {
+        VaultSession registered = async.registerSession("testuser", "Password123").get();
+        assertNotNull(registered);
+        assertTrue(async.addKey(registered, "github", "secret").get());
+
+        assertNull(async.registerSession("testuser", "Password123").get());
+        assertNull(async.registerSession("", "").get());
+        assertNull(async.loginSession("testuser", "WrongPassword").get());
+        assertNull(async.loginSession("nobody", "Password123").get());
+
+        VaultSession session = async.loginSession("testuser", "Password123").get();
+        assertNotNull(session);
+        assertEquals("secret", async.getKeyValue(session, "github").get());
+        assertEquals(List.of("github"), async.getVaultKeyNames(session).get());
+    }
+
+    @Test
+    void testKeyOperations() throws Exception {
+        VaultSession session = async.registerSession("testuser", "Password123").get();
+
+        assertEquals(Map.of("a", true, "b", true), async.addKeys(session, Map.of("a", "1", "b", "2")).get());
+        assertTrue(async.editKey(session, "a", "one").get());
+        assertEquals(Map.of("b", true), async.editKeys(session, Map.of("b", "two")).get());
+        assertEquals(Map.of("a", "one", "b", "two"), async.decryptAll(session).get());
+
+        assertTrue(async.deleteKey(session, "a").get());
+        assertEquals(Map.of("b", true), async.deleteKeys(session, List.of("b")).get());
+        assertTrue(async.getVaultKeyNames(session).get().isEmpty());
+
+        assertTrue(async.changePassword(session, "Password123", "NewPassword456").get());
+        assertNotNull(async.loginSession("testuser", "NewPassword456").get());
+        assertEquals(16, async.generateStrongPassword().get().length());
+    }
+
+    @Test
+    void testRotateKey() throws Exception {
+        VaultSession session = async.registerSession("testuser", "Password123").get();
+        assertTrue(async.addKey(session, "github", "secret").get());
+
+        assertTrue(async.rotateKey(session).get());
+        //The rotation outlives the call and the manager, so wait for it
+        //before the vault directory is deleted
+        assertTrue(session.awaitKeyRotation(30_000));
+        assertEquals("secret", async.getKeyValue(session, "github").get());
+        session.close();
+    }
+
+    @Test
+    void testLookupsDoNotWaitForLogins() throws Exception {
+        VaultSession session = async.registerSession("testuser", "Password123").get();
+        assertTrue(async.addKey(session, "github", "secret").get());
+
+        //one KDF thread, so these logins derive their keys one at a time
+        List<CompletableFuture<VaultSession>> logins = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            logins.add(async.loginSession("testuser", "Password123"));
+        }
+
+        assertEquals("secret", async.getKeyValue(session, "github").get());
+        assertFalse(logins.get(logins.size() - 1).isDone());
+        for (CompletableFuture<VaultSession> login : logins) {
+            assertNotNull(login.get());
+        }
+    }
+
+    private StorageService createLegacyVault(String username) throws Exception {
+        EncryptionService encryptionService = new EncryptionService();
+        byte[] salt = new byte[16];
+        SecretKey passwordKey = encryptionService.deriveKey("Password123", salt);
+        List<VaultEntry> entries = new ArrayList<>();
+        entries.add(new VaultEntry("vaultguard-auth", encryptionService.encrypt("dummy", passwordKey)));
+        entries.add(new VaultEntry("github", encryptionService.encrypt("secret", passwordKey)));
+        StorageService storage = new StorageService(TEST_VAULT_PATH);
+        storage.saveVault(username, new VaultFile(Base64.getEncoder().encodeToString(salt), entries));
+        return storage;
+    }
+
+    @Test
+    void testLoginUpgradeDerivesThroughScheduler() throws Exception {
+        StorageService storage = createLegacyVault("legacyuser");
+        long admitted = async.getKdfScheduler().getAdmittedCount();
+
+        VaultSession session = async.loginSession("legacyuser", "Password123").get();
+        assertNotNull(session);
+        assertEquals(admitted + 2, async.getKdfScheduler().getAdmittedCount());
+        assertNotNull(storage.loadVault("legacyuser").wrappedKey);
+        assertEquals("secret", async.getKeyValue(session, "github").get());
+    }
+
+    @Test
+    void testLoginSucceedsWhenUpgradeIsRejected() throws Exception {
+        StorageService storage = createLegacyVault("legacyuser");
+        KdfScheduler scheduler = new KdfScheduler(1) {
+            private int submitted = 0;
+
+            @Override
+            public synchronized <T> CompletableFuture<T> submit(String source, String client, Callable<T> derivation) {
+                //Turn away the second derivation, the upgrade's
+                if (++submitted == 2) return CompletableFuture.failedFuture(new KdfRejectedException("Busy"));
+                return super.submit(source, client, derivation);
+            }
+        };
+
+        try (AsyncPasswordManager busy = new AsyncPasswordManager(new PasswordManager(TEST_VAULT_PATH), scheduler, 2)) {
+            VaultSession session = busy.loginSession("legacyuser", "Password123").get();
+            assertNotNull(session);
+            assertEquals("secret", busy.getKeyValue(session, "github").get());
+            assertNull(storage.loadVault("legacyuser").wrappedKey);
+        }
+
+        //The upgrade happens at the next login
+        assertNotNull(async.loginSession("legacyuser", "Password123").get());
+        assertNotNull(storage.loadVault("legacyuser").wrappedKey);
+    }
+
+    @Test
+    void testClosedManagerRejectsOperations() throws Exception {
+        VaultSession session = async.registerSession("testuser", "Password123").get();
+        async.close();
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+            () -> async.getKeyValue(session, "github").get());
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+    }
+
+    @Test
+    void testCloseFailsQueuedOperations() throws Exception {
+        AsyncPasswordManager single = new AsyncPasswordManager(new PasswordManager(TEST_VAULT_PATH), 1, 1);
+        VaultSession session = single.registerSession("testuser", "Password123").get();
+        assertTrue(single.addKey(session, "github", "secret").get());
+
+        CompletableFuture<String> running;
+        CompletableFuture<String> queued;
+        synchronized (session) {
+            //the only I/O thread blocks on the session until this block ends
+            running = single.getKeyValue(session, "github");
+            queued = single.getKeyValue(session, "github");
+            single.close();
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        }
+        running.handle((value, failure) -> null).get(5, TimeUnit.SECONDS);
+    }
+}
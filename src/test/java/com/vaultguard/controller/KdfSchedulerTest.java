@@ -0,0 +1,186 @@
+package com.vaultguard.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class KdfSchedulerTest {
+
+    private KdfScheduler scheduler;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    public void cleanup() {
+        release.countDown();
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    /**
+     * Occupies the scheduler's only thread until release is counted down.
+     */
+    private CompletableFuture<String> block() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> blocker = scheduler.submit("blocker", () -> {
+            started.countDown();
+            release.await();
+            return "blocker";
+        });
+        started.await();
+        return blocker;
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        return e.getCause();
+    }
+
+    @Test
+    void testSourcesAreServedRoundRobin() throws Exception {
+        scheduler = new KdfScheduler(1, 100, 4, 60_000);
+        block();
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Boolean>> tasks = new ArrayList<>();
+        for (String name : List.of("a1", "a2", "a3", "b1", "c1", "b2")) {
+            tasks.add(scheduler.submit(name.substring(0, 1), () -> order.add(name)));
+        }
+        assertEquals(6, scheduler.getQueueDepth());
+        assertEquals(3, scheduler.getQueueDepth("a"));
+
+        release.countDown();
+        for (CompletableFuture<Boolean> task : tasks) {
+            task.get();
+        }
+        assertEquals(List.of("a1", "b1", "c1", "a2", "b2", "a3"), order);
+    }
+
+    @Test
+    void testClientsShareTheirSourcesTurns() throws Exception {
+        scheduler = new KdfScheduler(1, 100, 4, 60_000);
+        block();
+
+        //One source floods from many clients; another has a single derivation
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Boolean>> tasks = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            String name = "flood" + i;
+            tasks.add(scheduler.submit("victim", "connection" + i, () -> order.add(name)));
+        }
+        tasks.add(scheduler.submit("other", "connection0", () -> order.add("other")));
+        assertEquals(5, scheduler.getQueueDepth("victim"));
+
+        release.countDown();
+        for (CompletableFuture<Boolean> task : tasks) {
+            task.get();
+        }
+        assertEquals(List.of("flood1", "other", "flood2", "flood3", "flood4", "flood5"), order);
+    }
+
+    @Test
+    void testCapsEachClientOfASource() throws Exception {
+        scheduler = new KdfScheduler(1, 100, 2, 60_000);
+        block();
+
+        scheduler.submit("user", "attacker", () -> "first");
+        scheduler.submit("user", "attacker", () -> "second");
+        CompletableFuture<String> third = scheduler.submit("user", "attacker", () -> "third");
+        assertInstanceOf(KdfRejectedException.class, failure(third));
+
+        //The cap is per client, so another connection for the user gets in
+        CompletableFuture<String> legitimate = scheduler.submit("user", "legitimate", () -> "legitimate");
+        release.countDown();
+        assertEquals("legitimate", legitimate.get());
+    }
+
+    @Test
+    void testRejectsWhenSourceOrQueueIsFull() throws Exception {
+        scheduler = new KdfScheduler(1, 3, 2, 60_000);
+        block();
+
+        CompletableFuture<String> first = scheduler.submit("attacker", () -> "first");
+        scheduler.submit("attacker", () -> "second");
+        CompletableFuture<String> third = scheduler.submit("attacker", () -> "third");
+        assertTrue(third.isCompletedExceptionally());
+        assertInstanceOf(KdfRejectedException.class, failure(third));
+
+        CompletableFuture<String> user = scheduler.submit("user", () -> "user");
+        CompletableFuture<String> overflow = scheduler.submit("other", () -> "other");
+        assertInstanceOf(KdfRejectedException.class, failure(overflow));
+        assertEquals(2, scheduler.getRejectedCount());
+
+        release.countDown();
+        assertEquals("first", first.get());
+        assertEquals("user", user.get());
+    }
+
+    @Test
+    void testDropsDerivationsPastTheirDeadline() throws Exception {
+        scheduler = new KdfScheduler(1, 100, 4, 50);
+        CompletableFuture<String> blocker = block();
+        CompletableFuture<String> late = scheduler.submit("user", () -> "late");
+
+        Thread.sleep(100);
+        release.countDown();
+        assertEquals("blocker", blocker.get());
+        assertInstanceOf(KdfRejectedException.class, failure(late));
+        assertEquals(1, scheduler.getExpiredCount());
+        assertEquals(1, scheduler.getCompletedCount());
+    }
+
+    @Test
+    void testRejectsWhenEstimatedWaitExceedsDeadline() throws Exception {
+        scheduler = new KdfScheduler(1, 100, 4, 100);
+        scheduler.submit("user", () -> {
+            Thread.sleep(150);
+            return "slow";
+        }).get();
+
+        //one derivation running takes about 150ms, more than the 100ms deadline
+        block();
+        CompletableFuture<String> rejected = scheduler.submit("user", () -> "rejected");
+        assertTrue(rejected.isCompletedExceptionally());
+        assertInstanceOf(KdfRejectedException.class, failure(rejected));
+    }
+
+    @Test
+    void testReportsWaitTimes() throws Exception {
+        scheduler = new KdfScheduler(1, 100, 4, 60_000);
+        block();
+        CompletableFuture<String> queued = scheduler.submit("user", () -> "queued");
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueueDepth());
+
+        Thread.sleep(50);
+        release.countDown();
+        queued.get();
+        assertEquals(2, scheduler.getAdmittedCount());
+        assertEquals(0, scheduler.getQueueDepth());
+        assertTrue(scheduler.getMaxWaitMillis() >= 50);
+        assertTrue(scheduler.getAverageWaitMillis() >= 25);
+    }
+
+    @Test
+    void testCloseFailsQueuedDerivations() throws Exception {
+        scheduler = new KdfScheduler(1);
+        block();
+        CompletableFuture<String> queued = scheduler.submit("user", () -> "queued");
+
+        scheduler.close();
+        assertInstanceOf(RejectedExecutionException.class, failure(queued));
+        assertInstanceOf(RejectedExecutionException.class, failure(scheduler.submit("user", () -> "later")));
+    }
+}
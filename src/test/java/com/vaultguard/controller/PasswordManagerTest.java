@@ -1,19 +1,46 @@
 package com.vaultguard.controller;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
+import javax.crypto.SecretKey;
+
+import com.vaultguard.model.VaultEntry;
+import com.vaultguard.model.VaultFile;
+import com.vaultguard.model.VaultHeader;
+import com.vaultguard.services.EncryptionService;
+import com.vaultguard.services.ImportExportService;
+import com.vaultguard.services.KeyRing;
+import com.vaultguard.services.StorageService;
 import com.vaultguard.services.UserService;
 
 import org.junit.jupiter.api.AfterEach;
@@ -177,6 +204,640 @@ public class PasswordManagerTest {
         assertFalse(pm.addKey("someKey", "someValue"));
     }
 
+    @Test
+    void testCachedVault_SeesChangesFromOtherInstance() throws Exception {
+        String username = "testuser";
+        String password = "Password123";
+
+        assertTrue(pm.register(username, password));
+        assertTrue(pm.addKey("myKey", "mySecretValue"));
+        assertEquals(List.of("myKey"), pm.getVaultKeyNames());
+
+        PasswordManager other = new PasswordManager(TEST_VAULT_PATH);
+        assertTrue(other.login(username, password));
+        assertTrue(other.addKey("otherKey", "otherValue"));
+        assertTrue(other.deleteKey("myKey"));
+
+        assertEquals(List.of("otherKey"), pm.getVaultKeyNames());
+        assertEquals("otherValue", pm.getKeyValue("otherKey"));
+        assertNull(pm.getKeyValue("myKey"));
+    }
+
+    @Test
+    void testAddGetEditDeleteKey_LogStructuredStorage() throws Exception {
+        StorageService storageService = new StorageService(TEST_VAULT_PATH);
+        storageService.setLogStructured(true);
+        PasswordManager logPm = new PasswordManager(storageService, null, null, null);
+
+        assertTrue(logPm.register("testuser", "Password123"));
+        assertTrue(logPm.addKey("myKey", "mySecretValue"));
+        assertTrue(logPm.addKey("otherKey", "otherValue"));
+        assertTrue(logPm.editKey("myKey", "newSecretValue"));
+        assertTrue(logPm.deleteKey("otherKey"));
+        assertTrue(Files.exists(Paths.get(TEST_VAULT_PATH, "testuser.log")));
+
+        assertTrue(pm.login("testuser", "Password123"));
+        assertEquals(List.of("myKey"), pm.getVaultKeyNames());
+        assertEquals("newSecretValue", pm.getKeyValue("myKey"));
+    }
+
+    @Test
+    void testBatchAddEditDelete() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        assertTrue(pm.addKey("existing", "existingValue"));
+
+        Map<String, String> additions = new LinkedHashMap<>();
+        additions.put("first", "value1");
+        additions.put("existing", "duplicate");
+        additions.put("vaultguard-auth", "value");
+        additions.put("second", "");
+        additions.put("third", "value3");
+        assertEquals(List.of(true, false, false, false, true), List.copyOf(pm.addKeys(additions).values()));
+        assertEquals(List.of("existing", "first", "third"), pm.getVaultKeyNames());
+
+        Map<String, String> edits = new LinkedHashMap<>();
+        edits.put("first", "newValue1");
+        edits.put("missing", "value");
+        assertEquals(List.of(true, false), List.copyOf(pm.editKeys(edits).values()));
+        assertEquals("newValue1", pm.getKeyValue("first"));
+
+        Map<String, Boolean> deleted = pm.deleteKeys(List.of("third", "missing", "third"));
+        assertEquals(Map.of("third", true, "missing", false), deleted);
+        assertEquals(List.of("existing", "first"), pm.getVaultKeyNames());
+
+        //Changes must have reached the disk, not only the cache
+        PasswordManager other = new PasswordManager(TEST_VAULT_PATH);
+        assertTrue(other.login("testuser", "Password123"));
+        assertEquals(List.of("existing", "first"), other.getVaultKeyNames());
+        assertEquals("newValue1", other.getKeyValue("first"));
+    }
+
+    @Test
+    void testBatchOperations_NotLoggedIn_AllFail() throws Exception {
+        assertEquals(Map.of("key", false), pm.addKeys(Map.of("key", "value")));
+        assertEquals(Map.of("key", false), pm.editKeys(Map.of("key", "value")));
+        assertEquals(Map.of("key", false), pm.deleteKeys(List.of("key")));
+    }
+
+    @Test
+    void testImportKeys_ReencryptsWhenAnotherSessionRotatesMidImport() throws Exception {
+        VaultSession importing = pm.registerSession("testuser", "Password123");
+        VaultSession rotating = pm.loginSession("testuser", "Password123");
+        assertTrue(rotating.addKey("existing", "existingValue"));
+
+        //The other session rotates to a new key, dropping the old one,
+        //while the import is still reading its input
+        Reader csv = new StringReader("name,url,username,password,note\nimported,,,secret,\n") {
+            private boolean rotated = false;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                if (!rotated) {
+                    rotated = true;
+                    try {
+                        assertTrue(rotating.rotateKey());
+                        assertTrue(rotating.awaitKeyRotation(30_000));
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+                return super.read(buffer, offset, length);
+            }
+        };
+
+        assertEquals(Map.of("imported", true), importing.importKeys(csv, ImportExportService.Format.CSV));
+        VaultSession reopened = pm.loginSession("testuser", "Password123");
+        assertEquals("secret", reopened.getKeyValue("imported"));
+        assertEquals("existingValue", reopened.getKeyValue("existing"));
+    }
+
+    @Test
+    void testImportThenExportKeys() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        assertTrue(pm.addKey("existing", "existingValue"));
+
+        StringBuilder csv = new StringBuilder("name,url,username,password,note\n");
+        for (int i = 0; i < 3000; i++) {
+            csv.append("key").append(i).append(",https://example.com,me,secret").append(i).append(",\n");
+        }
+        csv.append("existing,,,other,\n");
+        csv.append("bad/name,,,value,\n");
+
+        Map<String, Boolean> results = pm.importKeys(new StringReader(csv.toString()), ImportExportService.Format.CSV);
+        assertEquals(3002, results.size());
+        assertFalse(results.get("existing"));
+        assertFalse(results.get("bad/name"));
+        assertEquals(3001, pm.getVaultKeyNames().size());
+        assertEquals("secret2999", pm.getKeyValue("key2999"));
+        assertEquals("existingValue", pm.getKeyValue("existing"));
+
+        StringWriter json = new StringWriter();
+        assertEquals(3001, pm.exportKeys(json, ImportExportService.Format.JSON));
+
+        PasswordManager other = new PasswordManager(TEST_VAULT_PATH);
+        assertTrue(other.register("otheruser", "Password123"));
+        Map<String, Boolean> reimported = other.importKeys(new StringReader(json.toString()), ImportExportService.Format.JSON);
+        assertEquals(3001, reimported.size());
+        assertFalse(reimported.containsValue(false));
+        assertEquals("secret1234", other.getKeyValue("key1234"));
+    }
+
+    @Test
+    void testLogin_UpgradesVaultToCurrentKdfParameters() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        assertTrue(pm.addKey("github", "secret"));
+        pm.logout();
+
+        EncryptionService stronger = new EncryptionService();
+        stronger.setIterations(150_000);
+        PasswordManager upgraded = new PasswordManager(TEST_VAULT_PATH, null, stronger, null);
+        assertTrue(upgraded.login("testuser", "Password123"));
+        assertEquals("secret", upgraded.getKeyValue("github"));
+
+        VaultFile vault = new StorageService(TEST_VAULT_PATH).loadVault("testuser");
+        assertEquals(150_000, vault.kdfIterations);
+        assertEquals("PBKDF2WithHmacSHA256", vault.kdfAlgorithm);
+
+        //The default service still opens the vault, with the stored parameters
+        assertTrue(pm.login("testuser", "Password123"));
+        assertEquals("secret", pm.getKeyValue("github"));
+        assertFalse(pm.login("testuser", "WrongPassword123"));
+        assertEquals(150_000, new StorageService(TEST_VAULT_PATH).loadVault("testuser").kdfIterations);
+    }
+
+    @Test
+    void testLogin_RejectsCorruptKdfParameters() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        pm.logout();
+
+        StorageService storage = new StorageService(TEST_VAULT_PATH);
+        Object[][] corrupt = {{"PBKDF2WithHmacSHA256", 0}, {"PBKDF2WithHmacSHA256", Integer.MAX_VALUE}, {"MD5", 100_000}};
+        try (AsyncPasswordManager async = new AsyncPasswordManager(pm)) {
+            for (Object[] kdf : corrupt) {
+                VaultFile vault = storage.loadVault("testuser");
+                vault.kdfAlgorithm = (String) kdf[0];
+                vault.kdfIterations = (Integer) kdf[1];
+                storage.saveVault("testuser", vault);
+
+                assertFalse(pm.login("testuser", "Password123"));
+                assertNull(async.loginSession("testuser", "Password123").get());
+            }
+        }
+    }
+
+    @Test
+    void testStreamDecryptedAndDecryptAll() throws Exception {
+        assertEquals(0, pm.streamDecrypted().count());
+        assertTrue(pm.decryptAll().isEmpty());
+
+        assertTrue(pm.register("testuser", "Password123"));
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (int i = 0; i < 2500; i++) {
+            keys.put("key" + i, "value" + i);
+        }
+        pm.addKeys(keys);
+
+        assertEquals(keys, pm.decryptAll());
+        try (Stream<Map.Entry<String, String>> entries = pm.streamDecrypted()) {
+            List<String> matches = entries
+                .filter(entry -> entry.getValue().endsWith("99"))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+            assertEquals(25, matches.size());
+            assertEquals("key99", matches.get(0));
+        }
+
+        //Only the chunks the stream reaches are decrypted
+        assertEquals("key0", pm.streamDecrypted().findFirst().get().getKey());
+    }
+
+    @Test
+    void testStreamDecrypted_UnaffectedByLaterWrites() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            keys.put("key" + i, "value" + i);
+        }
+        pm.addKeys(keys);
+
+        //The write leaves the session's cached view reading through to the
+        //modified vault; the stream must keep the vault as it was
+        try (Stream<Map.Entry<String, String>> entries = pm.streamDecrypted()) {
+            Iterator<Map.Entry<String, String>> iterator = entries.iterator();
+            assertEquals("key0", iterator.next().getKey());
+            assertTrue(pm.deleteKey("key2500"));
+            assertTrue(pm.editKey("key2600", "changed"));
+
+            Map<String, String> streamed = new LinkedHashMap<>();
+            iterator.forEachRemaining(entry -> streamed.put(entry.getKey(), entry.getValue()));
+            assertEquals(2999, streamed.size());
+            assertEquals("value2500", streamed.get("key2500"));
+            assertEquals("value2600", streamed.get("key2600"));
+        }
+    }
+
+    @Test
+    void testLogin_ReadsOnlyTheVaultHeader() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            keys.put("key" + i, "value" + i);
+        }
+        pm.addKeys(keys);
+        pm.logout();
+
+        //Damage the last entries; login must not notice
+        Path vaultPath = Paths.get(TEST_VAULT_PATH, "testuser.vault");
+        byte[] bytes = Files.readAllBytes(vaultPath);
+        Arrays.fill(bytes, bytes.length - 100, bytes.length, (byte) 0x7F);
+        Files.write(vaultPath, bytes);
+
+        assertFalse(pm.login("testuser", "WrongPassword123"));
+        assertTrue(pm.login("testuser", "Password123"));
+        assertThrows(IOException.class, () -> pm.getKeyValue("key0"));
+    }
+
+    @Test
+    void testEntriesUseUniqueCounterNonces() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        assertTrue(pm.addKey("first", "value1"));
+        pm.logout();
+        assertTrue(pm.login("testuser", "Password123"));
+        assertTrue(pm.addKey("second", "value2"));
+        assertTrue(pm.editKey("first", "value3"));
+
+        VaultFile vault = new StorageService(TEST_VAULT_PATH).loadVault("testuser");
+        ByteBuffer first = ByteBuffer.wrap(vault.keys.get("first").encryptedKey.getIvBytes());
+        ByteBuffer second = ByteBuffer.wrap(vault.keys.get("second").encryptedKey.getIvBytes());
+        assertEquals(first.getInt(0), second.getInt(0));
+        //Each session reserves its own block of counters
+        assertTrue(second.getLong(4) >= 1 << 16);
+        assertEquals(second.getLong(4) + 1, first.getLong(4));
+        assertEquals("value3", pm.getKeyValue("first"));
+    }
+
+    @Test
+    void testRotateKey_ReencryptsEntriesInTheBackground() throws Exception {
+        assertFalse(pm.rotateKey());
+        assertTrue(pm.register("testuser", "Password123"));
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            keys.put("key" + i, "value" + i);
+        }
+        pm.addKeys(keys);
+
+        pm.setKeyRotationPace(8, 50);
+        assertTrue(pm.rotateKey());
+        assertFalse(pm.rotateKey());
+        assertTrue(pm.isKeyRotationInProgress());
+
+        //The vault stays readable and writable during the rotation
+        assertEquals("value7", pm.getKeyValue("key7"));
+        assertTrue(pm.editKey("key49", "edited"));
+        assertTrue(pm.addKey("added", "during rotation"));
+
+        assertTrue(pm.awaitKeyRotation(30_000));
+        assertFalse(pm.isKeyRotationInProgress());
+
+        VaultFile vault = new StorageService(TEST_VAULT_PATH).loadVault("testuser");
+        assertEquals(1, vault.keyGeneration);
+        assertNull(vault.rotationKey);
+        for (VaultEntry entry : vault.keys) {
+            assertEquals(1, entry.encryptedKey.getKeyGeneration());
+        }
+        keys.put("key49", "edited");
+        keys.put("added", "during rotation");
+        assertEquals(keys, pm.decryptAll());
+
+        PasswordManager other = new PasswordManager(TEST_VAULT_PATH);
+        assertTrue(other.login("testuser", "Password123"));
+        assertEquals("value0", other.getKeyValue("key0"));
+    }
+
+    @Test
+    void testRotateKey_ResumesAtNextLogin() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (int i = 0; i < 40; i++) {
+            keys.put("key" + i, "value" + i);
+        }
+        pm.addKeys(keys);
+
+        //Stop after the first batch, as if the process had died
+        pm.setKeyRotationPace(5, 60_000);
+        assertTrue(pm.rotateKey());
+        StorageService storage = new StorageService(TEST_VAULT_PATH);
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (storage.loadVault("testuser").keys.get("vaultguard-auth").encryptedKey.getKeyGeneration() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        pm.logout();
+
+        VaultFile interrupted = storage.loadVault("testuser");
+        assertNotNull(interrupted.rotationKey);
+        assertEquals(0, interrupted.keyGeneration);
+        assertEquals(0, interrupted.keys.get("key39").encryptedKey.getKeyGeneration());
+
+        PasswordManager resumed = new PasswordManager(TEST_VAULT_PATH);
+        resumed.setKeyRotationPace(5, 0);
+        assertFalse(resumed.login("testuser", "WrongPassword123"));
+        assertTrue(resumed.login("testuser", "Password123"));
+        assertEquals("value39", resumed.getKeyValue("key39"));
+        assertTrue(resumed.awaitKeyRotation(30_000));
+
+        VaultFile vault = storage.loadVault("testuser");
+        assertEquals(1, vault.keyGeneration);
+        assertNull(vault.rotationKey);
+        assertEquals(1, vault.keys.get("key39").encryptedKey.getKeyGeneration());
+        assertEquals(keys, resumed.decryptAll());
+    }
+
+    @Test
+    void testGetKeyValueIntoBuffer() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        assertEquals(-1, pm.getKeyValue("github", buffer));
+
+        assertTrue(pm.register("testuser", "Password123"));
+        assertTrue(pm.addKey("github", "sécret"));
+
+        assertEquals(7, pm.getKeyValue("github", buffer));
+        buffer.flip();
+        assertEquals("sécret", StandardCharsets.UTF_8.decode(buffer).toString());
+        assertEquals(-1, pm.getKeyValue("missing", buffer.clear()));
+        assertEquals(-1, pm.getKeyValue("vaultguard-auth", buffer.clear()));
+    }
+
+    @Test
+    void testChangePassword_RewrapsOnlyTheDataKey() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        assertTrue(pm.addKey("github", "secret"));
+        StorageService storage = new StorageService(TEST_VAULT_PATH);
+        VaultFile before = storage.loadVault("testuser");
+
+        assertFalse(pm.changePassword("WrongPassword", "NewPassword456"));
+        assertFalse(pm.changePassword("Password123", "has space"));
+        assertTrue(pm.changePassword("Password123", "NewPassword456"));
+        assertEquals("secret", pm.getKeyValue("github"));
+
+        VaultFile after = storage.loadVault("testuser");
+        assertNotEquals(before.salt, after.salt);
+        assertNotEquals(before.wrappedKey.getCiphertext(), after.wrappedKey.getCiphertext());
+        assertEquals(before.keys.get("github").encryptedKey.getCiphertext(),
+            after.keys.get("github").encryptedKey.getCiphertext());
+
+        pm.logout();
+        assertFalse(pm.changePassword("NewPassword456", "Other789"));
+        assertFalse(pm.login("testuser", "Password123"));
+        assertTrue(pm.login("testuser", "NewPassword456"));
+        assertEquals("secret", pm.getKeyValue("github"));
+    }
+
+    @Test
+    void testLogin_MigratesLegacyVaultToWrappedDataKey() throws Exception {
+        EncryptionService encryptionService = new EncryptionService();
+        byte[] salt = new byte[16];
+        SecretKey passwordKey = encryptionService.deriveKey("Password123", salt);
+        List<VaultEntry> entries = new ArrayList<>();
+        entries.add(new VaultEntry("vaultguard-auth", encryptionService.encrypt("dummy", passwordKey)));
+        entries.add(new VaultEntry("github", encryptionService.encrypt("secret", passwordKey)));
+        StorageService storage = new StorageService(TEST_VAULT_PATH);
+        storage.saveVault("legacyuser", new VaultFile(Base64.getEncoder().encodeToString(salt), entries));
+
+        assertFalse(pm.login("legacyuser", "WrongPassword"));
+        assertNull(storage.loadVault("legacyuser").wrappedKey);
+
+        assertTrue(pm.login("legacyuser", "Password123"));
+        assertEquals("secret", pm.getKeyValue("github"));
+
+        VaultFile migrated = storage.loadVault("legacyuser");
+        assertNotNull(migrated.wrappedKey);
+        assertThrows(Exception.class, () -> encryptionService.decrypt(migrated.keys.get("github").encryptedKey, passwordKey));
+
+        PasswordManager other = new PasswordManager(TEST_VAULT_PATH);
+        assertTrue(other.login("legacyuser", "Password123"));
+        assertEquals("secret", other.getKeyValue("github"));
+    }
+
+    @Test
+    void testLogin_ReportsFailedUpgradeAndKeepsVault() throws Exception {
+        EncryptionService encryptionService = new EncryptionService();
+        byte[] salt = new byte[16];
+        SecretKey passwordKey = encryptionService.deriveKey("Password123", salt);
+        List<VaultEntry> entries = new ArrayList<>();
+        entries.add(new VaultEntry("vaultguard-auth", encryptionService.encrypt("dummy", passwordKey)));
+        entries.add(new VaultEntry("github", encryptionService.encrypt("secret", encryptionService.generateDataKey())));
+        StorageService storage = new StorageService(TEST_VAULT_PATH);
+        storage.saveVault("legacyuser", new VaultFile(Base64.getEncoder().encodeToString(salt), entries));
+
+        //The entry cannot be re-encrypted, so the upgrade fails but the login does not
+        VaultSession session = pm.loginSession("legacyuser", "Password123");
+        assertNotNull(session);
+        assertNotNull(session.getLastKeyError());
+        assertNull(storage.loadVault("legacyuser").wrappedKey);
+    }
+
+    @Test
+    void testLogin_RetriesWhenConcurrentLoginUpgradesLegacyVault() throws Exception {
+        EncryptionService encryptionService = new EncryptionService();
+        byte[] salt = new byte[16];
+        SecretKey passwordKey = encryptionService.deriveKey("Password123", salt);
+        List<VaultEntry> entries = new ArrayList<>();
+        entries.add(new VaultEntry("vaultguard-auth", encryptionService.encrypt("dummy", passwordKey)));
+        entries.add(new VaultEntry("github", encryptionService.encrypt("secret", passwordKey)));
+        new StorageService(TEST_VAULT_PATH).saveVault("legacyuser", new VaultFile(Base64.getEncoder().encodeToString(salt), entries));
+
+        //Another login upgrades the vault between this one unlocking it and upgrading it
+        PasswordManager racing = new PasswordManager(TEST_VAULT_PATH) {
+            private boolean raced = false;
+
+            @Override
+            KeyRing unlockVault(String username, VaultHeader header, SecretKey tempKey) throws Exception {
+                KeyRing keys = super.unlockVault(username, header, tempKey);
+                if (!raced) {
+                    raced = true;
+                    assertTrue(pm.login("legacyuser", "Password123"));
+                }
+                return keys;
+            }
+        };
+
+        VaultSession session = racing.loginSession("legacyuser", "Password123");
+        assertNotNull(session);
+        assertTrue(session.isOpen());
+        assertEquals("secret", session.getKeyValue("github"));
+        assertTrue(session.addKey("gitlab", "secret2"));
+        assertEquals("secret", pm.getKeyValue("github"));
+        assertEquals("secret2", pm.getKeyValue("gitlab"));
+    }
+
+    @Test
+    void testSessions_ConcurrentUsersShareOneManager() throws Exception {
+        int users = 4;
+        List<VaultSession> sessions = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            sessions.add(pm.registerSession("user" + i, "Password123"));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(users);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (VaultSession session : sessions) {
+                results.add(executor.submit(() -> {
+                    boolean ok = true;
+                    for (int k = 0; k < 20; k++) {
+                        ok &= session.addKey("key" + k, session.getUsername() + "-" + k);
+                    }
+                    return ok;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int i = 0; i < users; i++) {
+            VaultSession session = pm.loginSession("user" + i, "Password123");
+            assertNotNull(session);
+            assertEquals(20, session.getVaultKeyNames().size());
+            assertEquals("user" + i + "-7", session.getKeyValue("key7"));
+        }
+    }
+
+    @Test
+    void testSessions_SameUserConcurrentWritesAreAllKept() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        int sessions = 4;
+        int keysPerSession = 10;
+
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                //Each session has its own manager, like separate processes
+                VaultSession session = new PasswordManager(TEST_VAULT_PATH).loginSession("testuser", "Password123");
+                int writer = i;
+                results.add(executor.submit(() -> {
+                    boolean ok = true;
+                    for (int k = 0; k < keysPerSession; k++) {
+                        ok &= session.addKey("key" + writer + "-" + k, "value" + k);
+                    }
+                    return ok;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(sessions * keysPerSession, pm.getVaultKeyNames().size());
+    }
+
+    @Test
+    void testSessions_AreIndependentOfTheActiveUser() throws Exception {
+        VaultSession alice = pm.registerSession("alice", "Password123");
+        assertTrue(pm.register("bobby", "Password123"));
+        assertTrue(alice.addKey("github", "alice-secret"));
+        assertTrue(pm.addKey("github", "bob-secret"));
+
+        assertEquals("alice-secret", alice.getKeyValue("github"));
+        assertEquals("bob-secret", pm.getKeyValue("github"));
+        assertEquals("bobby", pm.getActiveSession().getUsername());
+    }
+
+    @Test
+    void testSessions_ClosedSessionIsLoggedOut() throws Exception {
+        assertNull(pm.loginSession("nobody", "Password123"));
+        VaultSession session = pm.registerSession("testuser", "Password123");
+        assertNull(pm.registerSession("testuser", "Password123"));
+        assertNull(pm.loginSession("testuser", "WrongPassword123"));
+        assertTrue(session.addKey("github", "secret"));
+
+        session.close();
+        assertFalse(session.isOpen());
+        assertNull(session.getKeyValue("github"));
+        assertFalse(session.addKey("gitlab", "secret"));
+        assertTrue(session.getVaultKeyNames().isEmpty());
+
+        assertEquals("secret", pm.loginSession("testuser", "Password123").getKeyValue("github"));
+    }
+
+    @Test
+    void testSessions_PickUpKeysRotatedByAnotherSession() throws Exception {
+        VaultSession first = pm.registerSession("testuser", "Password123");
+        VaultSession second = pm.loginSession("testuser", "Password123");
+        assertTrue(first.addKey("one", "secret1"));
+
+        assertTrue(first.rotateKey());
+        assertTrue(first.awaitKeyRotation(30_000));
+        assertFalse(first.isKeyRotationInProgress());
+
+        //second still holds the retired key, and must write with the new one
+        assertTrue(second.addKey("two", "secret2"));
+        assertEquals("secret1", second.getKeyValue("one"));
+        first.close();
+        second.close();
+
+        VaultSession reopened = pm.loginSession("testuser", "Password123");
+        assertEquals("secret1", reopened.getKeyValue("one"));
+        assertEquals("secret2", reopened.getKeyValue("two"));
+    }
+
+    @Test
+    void testChangePassword_KeepsKeysRotatedByAnotherSession() throws Exception {
+        VaultSession first = pm.registerSession("testuser", "Password123");
+        VaultSession second = pm.loginSession("testuser", "Password123");
+        assertTrue(first.addKey("one", "secret1"));
+
+        assertTrue(first.rotateKey());
+        assertTrue(first.awaitKeyRotation(30_000));
+        assertTrue(first.addKey("two", "secret2"));
+
+        //second logged in before the rotation, and must wrap the new key
+        assertTrue(second.changePassword("Password123", "NewPassword456"));
+
+        VaultSession reopened = pm.loginSession("testuser", "NewPassword456");
+        assertNotNull(reopened);
+        assertEquals("secret1", reopened.getKeyValue("one"));
+        assertEquals("secret2", reopened.getKeyValue("two"));
+    }
+
+    @Test
+    void testSessions_ClosedWhenAnotherSessionChangesPassword() throws Exception {
+        VaultSession first = pm.registerSession("testuser", "Password123");
+        VaultSession second = pm.loginSession("testuser", "Password123");
+        assertTrue(first.addKey("one", "secret1"));
+
+        assertTrue(first.changePassword("Password123", "NewPassword456"));
+        assertFalse(second.rotateKey());
+        assertFalse(second.isOpen());
+        assertFalse(second.addKey("two", "secret2"));
+
+        assertNull(pm.loginSession("testuser", "Password123"));
+        VaultSession reopened = pm.loginSession("testuser", "NewPassword456");
+        assertNotNull(reopened);
+        assertEquals("secret1", reopened.getKeyValue("one"));
+        assertTrue(reopened.rotateKey());
+        assertTrue(reopened.awaitKeyRotation(30_000));
+        assertEquals("secret1", pm.loginSession("testuser", "NewPassword456").getKeyValue("one"));
+    }
+
+    @Test
+    void testLogout_ClosesActiveSession() throws Exception {
+        assertTrue(pm.register("testuser", "Password123"));
+        VaultSession session = pm.getActiveSession();
+        pm.logout();
+
+        assertNull(pm.getActiveSession());
+        assertFalse(session.isOpen());
+        assertFalse(pm.addKey("github", "secret"));
+        assertEquals(Map.of("github", false), pm.addKeys(Map.of("github", "secret")));
+    }
+
     @Test
     void testGenerateStrongPassword_Length() {
         String password = pm.generateStrongPassword();
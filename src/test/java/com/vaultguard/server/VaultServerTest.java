@@ -0,0 +1,310 @@
+package com.vaultguard.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.vaultguard.controller.AsyncPasswordManager;
+import com.vaultguard.controller.KdfScheduler;
+import com.vaultguard.controller.PasswordManager;
+
+public class VaultServerTest {
+
+    private static final String TEST_VAULT_PATH = "./test-server-vaults";
+
+    private final Gson gson = new Gson();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private VaultServer server;
+    private String baseUrl;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new VaultServer(new PasswordManager(TEST_VAULT_PATH), 0);
+        server.start();
+        baseUrl = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        server.stop(0);
+        Path directory = Paths.get(TEST_VAULT_PATH);
+        if (Files.exists(directory)) {
+            deleteDirectoryRecursively(directory);
+        }
+    }
+
+    private void deleteDirectoryRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    deleteDirectoryRecursively(entry);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+
+    private HttpResponse<String> send(String method, String path, String token, Object body) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        HttpRequest.BodyPublisher publisher = body == null
+            ? HttpRequest.BodyPublishers.noBody()
+            : HttpRequest.BodyPublishers.ofString(body instanceof String ? (String) body : gson.toJson(body));
+        request.method(method, publisher);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private JsonObject json(HttpResponse<String> response) {
+        return gson.fromJson(response.body(), JsonObject.class);
+    }
+
+    private String register(String username, String password) throws Exception {
+        HttpResponse<String> response = send("POST", "/api/register", null, credentials(username, password));
+        assertEquals(201, response.statusCode());
+        return json(response).get("token").getAsString();
+    }
+
+    private static JsonObject credentials(String username, String password) {
+        JsonObject credentials = new JsonObject();
+        credentials.addProperty("username", username);
+        credentials.addProperty("password", password);
+        return credentials;
+    }
+
+    private static JsonObject key(String name, String value) {
+        JsonObject key = new JsonObject();
+        if (name != null) key.addProperty("name", name);
+        key.addProperty("value", value);
+        return key;
+    }
+
+    @Test
+    void testKeyLifecycle() throws Exception {
+        String token = register("testuser", "Password123");
+
+        assertEquals(201, send("POST", "/api/keys", token, key("github token", "secret")).statusCode());
+        assertEquals(409, send("POST", "/api/keys", token, key("github token", "secret")).statusCode());
+
+        HttpResponse<String> list = send("GET", "/api/keys", token, null);
+        assertEquals(200, list.statusCode());
+        assertEquals("[\"github token\"]", json(list).get("keys").toString());
+
+        HttpResponse<String> get = send("GET", "/api/keys/github%20token", token, null);
+        assertEquals(200, get.statusCode());
+        assertEquals("secret", json(get).get("value").getAsString());
+        assertEquals("no-store", get.headers().firstValue("Cache-Control").orElse(null));
+
+        assertEquals(200, send("PUT", "/api/keys/github%20token", token, key(null, "rotated")).statusCode());
+        assertEquals("rotated", json(send("GET", "/api/keys/github%20token", token, null)).get("value").getAsString());
+        assertEquals(404, send("PUT", "/api/keys/missing", token, key(null, "value")).statusCode());
+
+        assertEquals(204, send("DELETE", "/api/keys/github%20token", token, null).statusCode());
+        assertEquals(404, send("GET", "/api/keys/github%20token", token, null).statusCode());
+        assertEquals(404, send("DELETE", "/api/keys/github%20token", token, null).statusCode());
+    }
+
+    @Test
+    void testLoginAndLogout() throws Exception {
+        String registered = register("testuser", "Password123");
+        assertEquals(201, send("POST", "/api/keys", registered, key("github", "secret")).statusCode());
+
+        assertEquals(401, send("POST", "/api/login", null, credentials("testuser", "WrongPassword")).statusCode());
+        assertEquals(401, send("POST", "/api/login", null, credentials("nobody", "Password123")).statusCode());
+
+        HttpResponse<String> login = send("POST", "/api/login", null, credentials("testuser", "Password123"));
+        assertEquals(200, login.statusCode());
+        String token = json(login).get("token").getAsString();
+        assertEquals("secret", json(send("GET", "/api/keys/github", token, null)).get("value").getAsString());
+        assertEquals(2, server.getSessionCount());
+
+        assertEquals(204, send("POST", "/api/logout", token, null).statusCode());
+        assertEquals(401, send("GET", "/api/keys/github", token, null).statusCode());
+        assertEquals(200, send("GET", "/api/keys/github", registered, null).statusCode());
+    }
+
+    @Test
+    void testRejectsBadRequests() throws Exception {
+        assertEquals(401, send("GET", "/api/keys", null, null).statusCode());
+        assertEquals(401, send("GET", "/api/keys", "not-a-token", null).statusCode());
+        assertEquals(400, send("POST", "/api/register", null, credentials("", "")).statusCode());
+        assertEquals(400, send("POST", "/api/login", null, "{not json").statusCode());
+        assertEquals(405, send("GET", "/api/login", null, null).statusCode());
+
+        String token = register("testuser", "Password123");
+        assertEquals(400, send("POST", "/api/keys", token, "{}").statusCode());
+        assertEquals(413, send("POST", "/api/keys", token, key("big", "x".repeat(20_000))).statusCode());
+        assertEquals(404, send("GET", "/api/keys/a/b", token, null).statusCode());
+        HttpResponse<String> error = send("GET", "/api/keys/missing", token, null);
+        assertEquals("No such key", json(error).get("error").getAsString());
+    }
+
+    @Test
+    void testIdleSessionsExpire() throws Exception {
+        String token = register("testuser", "Password123");
+        server.setSessionTimeoutMillis(1);
+        Thread.sleep(10);
+
+        assertEquals(401, send("GET", "/api/keys", token, null).statusCode());
+        assertEquals(0, server.getSessionCount());
+    }
+
+    @Test
+    void testIdleSessionsAreReapedWithoutRequests() throws Exception {
+        register("testuser", "Password123");
+        server.setSessionTimeoutMillis(1);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (server.getSessionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, server.getSessionCount());
+    }
+
+    @Test
+    void testGeneratePassword() throws Exception {
+        HttpResponse<String> response = send("GET", "/api/generate", null, null);
+        assertEquals(200, response.statusCode());
+        assertEquals(16, json(response).get("password").getAsString().length());
+    }
+
+    @Test
+    void testConcurrentGets() throws Exception {
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            String token = register("testuser" + i, "Password123");
+            assertEquals(201, send("POST", "/api/keys", token, key("github", "secret" + i)).statusCode());
+            tokens.add(token);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                String token = tokens.get(i % 2);
+                results.add(executor.submit(() ->
+                    json(send("GET", "/api/keys/github", token, null)).get("value").getAsString()));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals("secret" + (i % 2), results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testStatusReportsKdfQueue() throws Exception {
+        register("testuser", "Password123");
+
+        HttpResponse<String> response = send("GET", "/api/status", null, null);
+        assertEquals(200, response.statusCode());
+        JsonObject status = json(response);
+        assertEquals(1, status.get("sessions").getAsInt());
+        JsonObject kdf = status.getAsJsonObject("kdf");
+        assertEquals(1, kdf.get("completed").getAsLong());
+        assertEquals(0, kdf.get("queued").getAsInt());
+        assertEquals(0, kdf.get("rejected").getAsLong());
+    }
+
+    @Test
+    void testShedsLoginsWhenKdfQueueIsFull() throws Exception {
+        server.stop(0);
+        KdfScheduler scheduler = new KdfScheduler(1, 1, 1, 60_000);
+        AsyncPasswordManager async = new AsyncPasswordManager(new PasswordManager(TEST_VAULT_PATH), scheduler, 4);
+        server = new VaultServer(async, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+        server.start();
+        baseUrl = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort();
+        register("testuser", "Password123");
+
+        //Occupy the only derivation thread and fill the queue
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit("other", () -> {
+            started.countDown();
+            return release.await(30, TimeUnit.SECONDS);
+        });
+        started.await();
+        CompletableFuture<Boolean> queued = scheduler.submit("another", () -> true);
+
+        try {
+            HttpResponse<String> response = send("POST", "/api/login", null, credentials("testuser", "Password123"));
+            assertEquals(503, response.statusCode());
+            assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+        } finally {
+            release.countDown();
+        }
+        queued.get();
+        assertEquals(200, send("POST", "/api/login", null, credentials("testuser", "Password123")).statusCode());
+    }
+
+    @Test
+    void testFloodDoesNotLockOutUsers() throws Exception {
+        server.stop(0);
+        KdfScheduler scheduler = new KdfScheduler(1);
+        AsyncPasswordManager async = new AsyncPasswordManager(new PasswordManager(TEST_VAULT_PATH), scheduler, 4);
+        server = new VaultServer(async, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+        server.start();
+        baseUrl = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort();
+        register("testuser", "Password123");
+        register("otheruser", "Password123");
+
+        //Wrong-password logins for testuser, each on a connection of its own
+        HttpRequest badLogin = HttpRequest.newBuilder(URI.create(baseUrl + "/api/login"))
+            .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(credentials("testuser", "WrongPassword1"))))
+            .build();
+        int attempts = 6;
+        List<CompletableFuture<HttpResponse<String>>> flood = new ArrayList<>();
+        for (int i = 0; i < attempts; i++) {
+            flood.add(HttpClient.newHttpClient().sendAsync(badLogin, HttpResponse.BodyHandlers.ofString()));
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (scheduler.getAdmittedCount() + scheduler.getRejectedCount() < 2 + attempts
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        //Another user's login takes the next turn, however many connections flood
+        assertEquals(200, send("POST", "/api/login", null, credentials("otheruser", "Password123")).statusCode());
+        assertTrue(scheduler.getQueueDepth("testuser") > 0);
+
+        //testuser can still log in on a connection of their own
+        assertEquals(200, send("POST", "/api/login", null, credentials("testuser", "Password123")).statusCode());
+        for (CompletableFuture<HttpResponse<String>> attempt : flood) {
+            int status = attempt.get().statusCode();
+            assertTrue(status == 401 || status == 503);
+        }
+    }
+
+    @Test
+    void testBindsToLoopbackByDefault() {
+        assertTrue(server.getAddress().getAddress().isLoopbackAddress());
+        assertTrue(server.getPort() > 0);
+    }
+}
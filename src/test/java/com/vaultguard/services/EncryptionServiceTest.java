@@ -5,9 +5,19 @@ import com.vaultguard.model.EncryptedData;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 
 public class EncryptionServiceTest {
 
@@ -86,5 +96,161 @@ public class EncryptionServiceTest {
             service.decrypt(newEncrypted, key);
         });
     }
-}
 
+    @Test
+    void testCipherReusedAfterFailedDecrypt() throws Exception {
+        SecretKey key = service.deriveKey("testPassword", generateSalt());
+        SecretKey wrongKey = service.deriveKey("wrong", generateSalt());
+
+        var encrypted = service.encrypt("Test message", key);
+        assertThrows(Exception.class, () -> service.decrypt(encrypted, wrongKey));
+
+        assertEquals("Test message", service.decrypt(encrypted, key));
+        assertEquals("Another message", service.decrypt(service.encrypt("Another message", key), key));
+    }
+
+    @Test
+    void testConcurrentEncryptDecrypt() throws Exception {
+        SecretKey key = service.deriveKey("testPassword", generateSalt());
+
+        List<Thread> threads = new ArrayList<>();
+        Set<String> ivs = ConcurrentHashMap.newKeySet();
+        AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        String message = "message " + thread + "/" + i;
+                        var encrypted = service.encrypt(message, key);
+                        ivs.add(encrypted.getIv());
+                        if (!message.equals(service.decrypt(encrypted, key))) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(8 * 500, ivs.size());
+    }
+
+    @Test
+    void testByteBufferEncryptDecrypt() throws Exception {
+        SecretKey key = service.deriveKey("testPassword", generateSalt());
+        byte[] message = "päss wörd €".getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer plaintext = ByteBuffer.wrap(message);
+        EncryptedData encrypted = service.encrypt(plaintext, key);
+        assertEquals(0, plaintext.remaining());
+        assertEquals(message.length, EncryptionService.plaintextLength(encrypted));
+        assertEquals("päss wörd €", service.decrypt(encrypted, key));
+
+        ByteBuffer out = ByteBuffer.allocate(64);
+        out.position(3);
+        assertEquals(message.length, service.decrypt(encrypted, key, out));
+        assertEquals(3 + message.length, out.position());
+        assertArrayEquals(message, Arrays.copyOfRange(out.array(), 3, 3 + message.length));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(message.length);
+        service.decrypt(service.encrypt("päss wörd €", key), key, direct);
+        direct.flip();
+        assertEquals("päss wörd €", StandardCharsets.UTF_8.decode(direct).toString());
+
+        assertThrows(ShortBufferException.class,
+            () -> service.decrypt(encrypted, key, ByteBuffer.allocate(message.length - 1)));
+    }
+
+    @Test
+    void testEncryptWithCounterNonces() throws Exception {
+        SecretKey key = service.deriveKey("testPassword", generateSalt());
+        byte[] prefix = {1, 2, 3, 4};
+        NonceSequence nonces = new NonceSequence(count -> new NonceSequence.Block(prefix, 1000, 1000 + count), 16);
+
+        EncryptedData first = service.encrypt("first", key, nonces);
+        EncryptedData second = service.encrypt(ByteBuffer.wrap("second".getBytes(StandardCharsets.UTF_8)), key, nonces);
+
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0x03, (byte) 0xE8}, first.getIvBytes());
+        assertEquals(1001, ByteBuffer.wrap(second.getIvBytes(), 4, 8).getLong());
+        assertEquals("first", service.decrypt(first, key));
+        assertEquals("second", service.decrypt(second, key));
+    }
+
+    @Test
+    void testRawAndBase64FormsAreInterchangeable() throws Exception {
+        SecretKey key = service.deriveKey("testPassword", generateSalt());
+        EncryptedData raw = service.encrypt("Test message", key);
+        assertTrue(raw.isRaw());
+
+        EncryptedData text = new EncryptedData(raw.getIv(), raw.getCiphertext());
+        assertFalse(text.isRaw());
+        assertEquals("Test message", service.decrypt(text, key));
+        assertArrayEquals(raw.getCiphertextBytes(), text.getCiphertextBytes());
+    }
+
+    @Test
+    void testDeriveKeyMatchesProvider() throws Exception {
+        String[] passwords = {"testPassword", "Password123", "pässwörd €", "x",
+            "a password that is longer than one sixty-four byte SHA-256 block, to exercise key hashing"};
+        for (String password : passwords) {
+            byte[] salt = generateSalt();
+            assertArrayEquals(service.deriveKeyWithProvider(password, salt).getEncoded(),
+                service.deriveKey(password, salt).getEncoded(), password);
+        }
+    }
+
+    @Test
+    void testDeriveKeyUsesGivenParameters() throws Exception {
+        byte[] salt = generateSalt();
+        SecretKey defaultKey = service.deriveKey("testPassword", salt);
+
+        assertArrayEquals(defaultKey.getEncoded(),
+            service.deriveKey("testPassword", salt, "PBKDF2WithHmacSHA256", 100_000).getEncoded());
+        assertFalse(Arrays.equals(defaultKey.getEncoded(),
+            service.deriveKey("testPassword", salt, "PBKDF2WithHmacSHA256", 1000).getEncoded()));
+        assertEquals(32, service.deriveKey("testPassword", salt, "PBKDF2WithHmacSHA512", 1000).getEncoded().length);
+    }
+
+    @Test
+    void testIsSupportedKdf() {
+        assertTrue(service.isSupportedKdf("PBKDF2WithHmacSHA256", 100_000));
+        assertTrue(service.isSupportedKdf("PBKDF2WithHmacSHA512", EncryptionService.MAX_KDF_ITERATIONS));
+        assertFalse(service.isSupportedKdf("PBKDF2WithHmacSHA256", 0));
+        assertFalse(service.isSupportedKdf("PBKDF2WithHmacSHA256", EncryptionService.MAX_KDF_ITERATIONS + 1));
+        assertFalse(service.isSupportedKdf("DES", 100_000));
+        assertFalse(service.isSupportedKdf(null, 100_000));
+    }
+
+    @Test
+    void testCalibrateIterations() throws Exception {
+        int iterations = service.calibrateIterations(1);
+        assertEquals(100_000, iterations);
+
+        iterations = service.calibrateIterations(5000);
+        assertTrue(iterations >= 100_000);
+        assertEquals(0, iterations % 10_000);
+    }
+
+    @Test
+    void testPbkdf2TestVectors() throws Exception {
+        //RFC 7914 section 11
+        byte[] expected = HexFormat.of().parseHex(
+            "55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"
+            + "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783");
+        assertArrayEquals(expected, Pbkdf2HmacSha256.derive("passwd".getBytes(), "salt".getBytes(), 1, 64));
+
+        byte[] expected2 = HexFormat.of().parseHex(
+            "4ddcd8f60b98be21830cee5ef22701f9641a4418d04c0414aeff08876b34ab56"
+            + "a1d425a1225833549adb841b51c9b3176a272bdebba1d078478f62b397f33c8d");
+        assertArrayEquals(expected2, Pbkdf2HmacSha256.derive("Password".getBytes(), "NaCl".getBytes(), 80000, 64));
+    }
+}
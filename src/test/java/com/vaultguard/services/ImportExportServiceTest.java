@@ -0,0 +1,110 @@
+package com.vaultguard.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.Test;
+
+import com.vaultguard.model.EncryptedData;
+
+class ImportExportServiceTest {
+
+    ImportExportService service = new ImportExportService(null);
+
+    private List<String[]> readAll(String input, ImportExportService.Format format) throws IOException {
+        ImportExportService.RecordReader reader = service.openReader(new StringReader(input), format);
+        List<String[]> records = new ArrayList<>();
+        String[] record;
+        while ((record = reader.next()) != null) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    @Test
+    void testReadBitwardenCsv() throws Exception {
+        String csv = "folder,favorite,type,name,notes,fields,reprompt,login_uri,login_username,login_password,login_totp\n"
+            + ",,login,github,,,0,https://github.com,me,\"p,a\"\"ss\",\n"
+            + ",,login,\"multi\nline\",,,0,,,secret,\n";
+
+        List<String[]> records = readAll(csv, ImportExportService.Format.CSV);
+
+        assertEquals(2, records.size());
+        assertArrayEquals(new String[] {"github", "p,a\"ss"}, records.get(0));
+        assertArrayEquals(new String[] {"multi\nline", "secret"}, records.get(1));
+    }
+
+    @Test
+    void testReadLastPassAndOnePasswordCsv() throws Exception {
+        String lastPass = "url,username,password,totp,extra,name,grouping,fav\r\n"
+            + "https://a.com,me,pw1,,,Site A,,0\r\n";
+        String onePassword = "\uFEFFTitle,Url,Username,Password\n"
+            + "Site B,https://b.com,me,pw2";
+
+        assertArrayEquals(new String[] {"Site A", "pw1"}, readAll(lastPass, ImportExportService.Format.CSV).get(0));
+        assertArrayEquals(new String[] {"Site B", "pw2"}, readAll(onePassword, ImportExportService.Format.CSV).get(0));
+    }
+
+    @Test
+    void testReadCsvWithoutKnownColumnsFails() {
+        assertThrows(IOException.class, () -> readAll("foo,bar\n1,2\n", ImportExportService.Format.CSV));
+    }
+
+    @Test
+    void testReadJsonArrayAndBitwardenExport() throws Exception {
+        String array = "[{\"name\":\"a\",\"value\":\"1\"},{\"title\":\"b\",\"password\":\"2\",\"extra\":[1,2]}]";
+        String bitwarden = "{\"encrypted\":false,\"folders\":[],\"items\":["
+            + "{\"type\":1,\"name\":\"c\",\"login\":{\"username\":\"me\",\"password\":\"3\"}},"
+            + "{\"type\":2,\"name\":\"note\",\"notes\":\"no password\"}]}";
+
+        List<String[]> arrayRecords = readAll(array, ImportExportService.Format.JSON);
+        assertArrayEquals(new String[] {"a", "1"}, arrayRecords.get(0));
+        assertArrayEquals(new String[] {"b", "2"}, arrayRecords.get(1));
+
+        List<String[]> bitwardenRecords = readAll(bitwarden, ImportExportService.Format.JSON);
+        assertArrayEquals(new String[] {"c", "3"}, bitwardenRecords.get(0));
+        assertEquals("note", bitwardenRecords.get(1)[0]);
+        assertNull(bitwardenRecords.get(1)[1]);
+    }
+
+    @Test
+    void testWrittenRecordsReadBack() throws Exception {
+        for (ImportExportService.Format format : ImportExportService.Format.values()) {
+            StringWriter out = new StringWriter();
+            ImportExportService.RecordWriter writer = service.openWriter(out, format);
+            writer.write("plain", "value");
+            writer.write("needs, quoting", "a \"quoted\"\nvalue ");
+            writer.finish();
+
+            List<String[]> records = readAll(out.toString(), format);
+            assertArrayEquals(new String[] {"plain", "value"}, records.get(0));
+            assertArrayEquals(new String[] {"needs, quoting", "a \"quoted\"\nvalue "}, records.get(1));
+        }
+    }
+
+    @Test
+    void testParallelEncryptDecryptKeepsOrder() throws Exception {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        SecretKey key = new EncryptionService().deriveKey("testPassword", salt);
+
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            values.add("value" + i);
+        }
+        List<EncryptedData> encrypted = service.encryptAll(values, key);
+
+        assertEquals(values, service.decryptAll(encrypted, key));
+    }
+}
@@ -1,10 +1,16 @@
 package com.vaultguard.services;
 
+import com.google.gson.GsonBuilder;
 import com.vaultguard.model.*;
 import org.junit.jupiter.api.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -46,9 +52,9 @@ class StorageServiceTest {
 
         assertEquals("testSalt", loadedVault.salt);
         assertEquals(1, loadedVault.keys.size());
-        assertEquals("facebook password", loadedVault.keys.get(0).name);
-        assertEquals("testIv", loadedVault.keys.get(0).encryptedKey.getIv());
-        assertEquals("testCipher", loadedVault.keys.get(0).encryptedKey.getCiphertext());
+        assertEquals(List.of("facebook password"), loadedVault.keys.names());
+        assertEquals("testIv", loadedVault.keys.get("facebook password").encryptedKey.getIv());
+        assertEquals("testCipher", loadedVault.keys.get("facebook password").encryptedKey.getCiphertext());
     }
 
     @Test
@@ -56,4 +62,604 @@ class StorageServiceTest {
         VaultFile loadedVault = storageService.loadVault("testUser");
         assertNull(loadedVault);
     }
+
+    @Test
+    void testVaultStampChangesAfterSave() throws Exception {
+        String username = "testUser";
+        assertNull(storageService.getVaultStamp(username));
+
+        List<VaultEntry> keys = new ArrayList<>();
+        keys.add(new VaultEntry("first", new EncryptedData("iv1", "cipher1")));
+        VaultFile vaultFile = new VaultFile("testSalt", keys);
+        storageService.saveVault(username, vaultFile);
+
+        VaultStamp first = storageService.getVaultStamp(username);
+        assertNotNull(first);
+        assertEquals(first, storageService.getVaultStamp(username));
+
+        vaultFile.keys.add(new VaultEntry("second", new EncryptedData("iv2", "cipher2")));
+        storageService.saveVault(username, vaultFile);
+
+        assertNotEquals(first, storageService.getVaultStamp(username));
+    }
+
+    @Test
+    void testSavedVaultKeepsListShapeAndOrder() throws Exception {
+        String username = "testUser";
+        storageService.setFormat(StorageService.Format.JSON);
+
+        List<VaultEntry> keys = new ArrayList<>();
+        keys.add(new VaultEntry("b", new EncryptedData("iv1", "cipher1")));
+        keys.add(new VaultEntry("a", new EncryptedData("iv2", "cipher2")));
+        keys.add(new VaultEntry("c", new EncryptedData("iv3", "cipher3")));
+        VaultFile vaultFile = new VaultFile("testSalt", keys);
+        vaultFile.keys.remove("a");
+        vaultFile.keys.put(new VaultEntry("b", new EncryptedData("iv4", "cipher4")));
+        storageService.saveVault(username, vaultFile);
+
+        String json = Files.readString(Paths.get(TEST_DIR, username + ".json"));
+        assertTrue(json.contains("\"keys\": ["));
+
+        VaultFile loadedVault = storageService.loadVault(username);
+        assertEquals(List.of("b", "c"), loadedVault.keys.names());
+        assertEquals("iv4", loadedVault.keys.get("b").encryptedKey.getIv());
+        assertFalse(loadedVault.keys.contains("a"));
+    }
+
+    @Test
+    void testLogStructuredChangesAreAppendedAndReplayed() throws Exception {
+        String username = "testUser";
+        storageService.setLogStructured(true);
+
+        List<VaultEntry> keys = new ArrayList<>();
+        keys.add(new VaultEntry("first", new EncryptedData("iv1", "cipher1")));
+        VaultFile vaultFile = new VaultFile("testSalt", keys);
+        storageService.saveVault(username, vaultFile);
+        byte[] snapshot = Files.readAllBytes(Paths.get(TEST_DIR, username + ".vault"));
+
+        VaultEntry second = new VaultEntry("second", new EncryptedData("iv2", "cipher2"));
+        vaultFile.keys.add(second);
+        storageService.saveChanges(username, vaultFile, List.of(VaultChange.put(second)));
+        vaultFile.keys.remove("first");
+        storageService.saveChanges(username, vaultFile, List.of(VaultChange.delete("first")));
+
+        assertArrayEquals(snapshot, Files.readAllBytes(Paths.get(TEST_DIR, username + ".vault")));
+        assertTrue(Files.exists(Paths.get(TEST_DIR, username + ".log")));
+
+        VaultFile loadedVault = storageService.loadVault(username);
+        assertEquals(List.of("second"), loadedVault.keys.names());
+        assertEquals("cipher2", loadedVault.keys.get("second").encryptedKey.getCiphertext());
+    }
+
+    @Test
+    void testLogStructuredCompactsPastThreshold() throws Exception {
+        String username = "testUser";
+        storageService.setLogStructured(true);
+        storageService.setCompactionThreshold(0);
+
+        VaultFile vaultFile = new VaultFile("testSalt", new ArrayList<>());
+        storageService.saveVault(username, vaultFile);
+
+        for (int i = 0; i < 20; i++) {
+            VaultEntry entry = new VaultEntry("key" + i, new EncryptedData("iv" + i, "cipher" + i));
+            vaultFile.keys.add(entry);
+            storageService.saveChanges(username, vaultFile, List.of(VaultChange.put(entry)));
+        }
+
+        Path logPath = Paths.get(TEST_DIR, username + ".log");
+        assertTrue(!Files.exists(logPath) || Files.size(logPath) < Files.size(Paths.get(TEST_DIR, username + ".vault")));
+        assertEquals(20, storageService.loadVault(username).keys.size());
+
+        storageService.compact(username);
+        assertFalse(Files.exists(logPath));
+        assertEquals(20, storageService.loadVault(username).keys.size());
+    }
+
+    @Test
+    void testLogReplayStopsAtTornRecord() throws Exception {
+        String username = "testUser";
+        storageService.setLogStructured(true);
+
+        VaultFile vaultFile = new VaultFile("testSalt", new ArrayList<>());
+        storageService.saveVault(username, vaultFile);
+        VaultEntry entry = new VaultEntry("first", new EncryptedData("iv1", "cipher1"));
+        vaultFile.keys.add(entry);
+        storageService.saveChanges(username, vaultFile, List.of(VaultChange.put(entry)));
+
+        Files.writeString(Paths.get(TEST_DIR, username + ".log"), "{\"type\":\"PUT\",\"na", StandardOpenOption.APPEND);
+
+        assertEquals(List.of("first"), storageService.loadVault(username).keys.names());
+    }
+
+    @Test
+    void testAppendAfterTornRecordKeepsNewRecords() throws Exception {
+        String username = "testUser";
+        storageService.setLogStructured(true);
+
+        VaultFile vaultFile = new VaultFile("testSalt", new ArrayList<>());
+        storageService.saveVault(username, vaultFile);
+        VaultEntry first = new VaultEntry("first", new EncryptedData("iv1", "cipher1"));
+        vaultFile.keys.add(first);
+        storageService.saveChanges(username, vaultFile, List.of(VaultChange.put(first)));
+        long version = vaultFile.version;
+
+        Path logPath = Paths.get(TEST_DIR, username + ".log");
+        Files.writeString(logPath, "{\"type\":\"PU", StandardOpenOption.APPEND);
+
+        StorageService restarted = new StorageService(TEST_DIR);
+        restarted.setLogStructured(true);
+        VaultFile loaded = restarted.loadVault(username);
+        assertEquals(version, loaded.version);
+        VaultEntry second = new VaultEntry("second", new EncryptedData("iv2", "cipher2"));
+        loaded.keys.add(second);
+        restarted.saveChanges(username, loaded, List.of(VaultChange.put(second)), version);
+        assertEquals(version + 1, loaded.version);
+
+        VaultFile reloaded = new StorageService(TEST_DIR).loadVault(username);
+        assertEquals(List.of("first", "second"), reloaded.keys.names());
+        assertEquals(version + 1, reloaded.version);
+        assertTrue(Files.readString(logPath).endsWith("\n"));
+        assertThrows(VaultConflictException.class,
+            () -> restarted.saveChanges(username, loaded, List.of(VaultChange.delete("first")), version));
+    }
+
+    @Test
+    void testSaveVaultLeavesNoTempFiles() throws Exception {
+        String username = "testUser";
+        VaultFile vaultFile = new VaultFile("testSalt", new ArrayList<>());
+        storageService.saveVault(username, vaultFile);
+        vaultFile.keys.add(new VaultEntry("first", new EncryptedData("iv1", "cipher1")));
+        storageService.saveVault(username, vaultFile);
+
+        try (var files = Files.list(Paths.get(TEST_DIR))) {
+            assertEquals(List.of(username + ".lock", username + ".vault"),
+                files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList()));
+        }
+        assertEquals(List.of("first"), storageService.loadVault(username).keys.names());
+    }
+
+    @Test
+    void testGroupCommitKeepsEveryConcurrentAppend() throws Exception {
+        String username = "testUser";
+        storageService.setLogStructured(true);
+        storageService.setGroupCommit(true);
+        storageService.setGroupCommitWindowMillis(5);
+        storageService.setCompactionThreshold(Long.MAX_VALUE);
+
+        VaultFile vaultFile = new VaultFile("testSalt", new ArrayList<>());
+        storageService.saveVault(username, vaultFile);
+
+        int writers = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                VaultEntry entry = new VaultEntry("key" + i, new EncryptedData("iv" + i, "cipher" + i));
+                futures.add(executor.submit(() -> {
+                    storageService.saveChanges(username, vaultFile, List.of(VaultChange.put(entry)));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        VaultFile loadedVault = storageService.loadVault(username);
+        assertEquals(writers, loadedVault.keys.size());
+        for (int i = 0; i < writers; i++) {
+            assertEquals("cipher" + i, loadedVault.keys.get("key" + i).encryptedKey.getCiphertext());
+        }
+    }
+
+    @Test
+    void testStaleSaveIsRejected() throws Exception {
+        String username = "testUser";
+        storageService.saveVault(username, new VaultFile("testSalt", new ArrayList<>()));
+
+        VaultFile first = storageService.loadVault(username);
+        VaultFile second = new StorageService(TEST_DIR).loadVault(username);
+        assertEquals(1, first.version);
+
+        first.keys.add(new VaultEntry("first", new EncryptedData("iv1", "cipher1")));
+        storageService.saveVault(username, first, first.version);
+        assertEquals(2, first.version);
+
+        second.keys.add(new VaultEntry("second", new EncryptedData("iv2", "cipher2")));
+        VaultConflictException conflict = assertThrows(VaultConflictException.class,
+            () -> new StorageService(TEST_DIR).saveVault(username, second, second.version));
+        assertEquals(1, conflict.getExpectedVersion());
+        assertEquals(2, conflict.getActualVersion());
+
+        VaultFile loadedVault = storageService.loadVault(username);
+        assertEquals(List.of("first"), loadedVault.keys.names());
+        assertEquals(2, loadedVault.version);
+    }
+
+    @Test
+    void testLogRecordsAdvanceTheVersion() throws Exception {
+        String username = "testUser";
+        storageService.setLogStructured(true);
+        storageService.setCompactionThreshold(Long.MAX_VALUE);
+        storageService.saveVault(username, new VaultFile("testSalt", new ArrayList<>()));
+
+        VaultFile vaultFile = storageService.loadVault(username);
+        List<VaultChange> changes = List.of(
+            VaultChange.put(new VaultEntry("first", new EncryptedData("iv1", "cipher1"))),
+            VaultChange.put(new VaultEntry("second", new EncryptedData("iv2", "cipher2"))));
+        for (VaultChange change : changes) {
+            change.applyTo(vaultFile.keys);
+        }
+        storageService.saveChanges(username, vaultFile, changes, vaultFile.version);
+
+        assertEquals(3, vaultFile.version);
+        assertEquals(3, storageService.loadVault(username).version);
+        assertEquals(1, storageService.readVaultHeader(username).getVersion());
+        assertThrows(VaultConflictException.class,
+            () -> storageService.saveChanges(username, vaultFile, List.of(VaultChange.delete("first")), 1));
+    }
+
+    @Test
+    void testRetriedSavesLoseNoUpdates() throws Exception {
+        String username = "testUser";
+        storageService.saveVault(username, new VaultFile("testSalt", new ArrayList<>()));
+
+        int writers = 8;
+        int keysPerWriter = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                //Separate instances stand in for separate processes
+                StorageService writerStorage = new StorageService(TEST_DIR);
+                int writer = i;
+                futures.add(executor.submit(() -> {
+                    for (int k = 0; k < keysPerWriter; k++) {
+                        VaultEntry entry = new VaultEntry("key" + writer + "-" + k, new EncryptedData("iv", "cipher"));
+                        while (true) {
+                            VaultFile vaultFile = writerStorage.loadVault(username);
+                            vaultFile.keys.add(entry);
+                            try {
+                                writerStorage.saveVault(username, vaultFile, vaultFile.version);
+                                break;
+                            } catch (VaultConflictException e) {
+                                //Reload and try again
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        VaultFile loadedVault = storageService.loadVault(username);
+        assertEquals(writers * keysPerWriter, loadedVault.keys.size());
+        assertEquals(1 + writers * keysPerWriter, loadedVault.version);
+    }
+
+    @Test
+    void testJsonVaultIsMigratedToBinary() throws Exception {
+        String username = "testUser";
+        String iv = Base64.getEncoder().encodeToString(new byte[12]);
+        String ciphertext = Base64.getEncoder().encodeToString(new byte[40]);
+        String salt = Base64.getEncoder().encodeToString(new byte[16]);
+
+        StorageService jsonStorage = new StorageService(TEST_DIR);
+        jsonStorage.setFormat(StorageService.Format.JSON);
+        List<VaultEntry> keys = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            keys.add(new VaultEntry("key" + i, new EncryptedData(iv, ciphertext)));
+        }
+        jsonStorage.saveVault(username, new VaultFile(salt, keys));
+        Path jsonPath = Paths.get(TEST_DIR, username + ".json");
+        long jsonSize = Files.size(jsonPath);
+
+        VaultFile loadedVault = storageService.loadVault(username);
+        Path binaryPath = Paths.get(TEST_DIR, username + ".vault");
+        assertFalse(Files.exists(jsonPath));
+        assertTrue(Files.exists(binaryPath));
+        assertTrue(Files.size(binaryPath) < jsonSize / 2);
+
+        VaultFile reloadedVault = storageService.loadVault(username);
+        assertEquals(salt, reloadedVault.salt);
+        assertEquals(loadedVault.keys.names(), reloadedVault.keys.names());
+        assertEquals(iv, reloadedVault.keys.get("key7").encryptedKey.getIv());
+        assertEquals(ciphertext, reloadedVault.keys.get("key7").encryptedKey.getCiphertext());
+    }
+
+    @Test
+    void testKdfParametersRoundTripAndLegacyDefaults() throws Exception {
+        Files.writeString(Paths.get(TEST_DIR, "legacy.json"), "{\"salt\": \"testSalt\", \"keys\": []}");
+        VaultFile legacy = storageService.loadVault("legacy");
+        assertEquals(VaultFile.LEGACY_KDF_ALGORITHM, legacy.kdfAlgorithm);
+        assertEquals(VaultFile.LEGACY_KDF_ITERATIONS, legacy.kdfIterations);
+
+        for (StorageService.Format format : StorageService.Format.values()) {
+            StorageService storage = new StorageService(TEST_DIR);
+            storage.setFormat(format);
+            VaultFile vaultFile = new VaultFile("testSalt", "PBKDF2WithHmacSHA512", 420_000, new ArrayList<>());
+            vaultFile.wrappedKey = new EncryptedData("wrapIv", "wrapCipher");
+            storage.saveVault("tuned", vaultFile);
+
+            VaultFile loaded = storage.loadVault("tuned");
+            assertEquals("PBKDF2WithHmacSHA512", loaded.kdfAlgorithm);
+            assertEquals(420_000, loaded.kdfIterations);
+            assertEquals("wrapCipher", loaded.wrappedKey.getCiphertext());
+            MappedVault mapped = storage.mapVault("tuned");
+            assertEquals("PBKDF2WithHmacSHA512", mapped.getKdfAlgorithm());
+            assertEquals(420_000, mapped.getKdfIterations());
+            assertEquals("wrapIv", mapped.getWrappedKey().getIv());
+        }
+    }
+
+    @Test
+    void testNullKeysLoadAsEmptyVault() throws Exception {
+        Files.writeString(Paths.get(TEST_DIR, "nulls.json"), "{\"salt\": \"testSalt\", \"keys\": null}");
+        VaultFile loaded = storageService.loadVault("nulls");
+        assertNotNull(loaded.keys);
+        assertEquals(0, loaded.keys.size());
+
+        VaultChange change = VaultChange.put(new VaultEntry("a", new EncryptedData("iv", "c")));
+        change.applyTo(loaded.keys);
+        storageService.saveChanges("nulls", loaded, List.of(change));
+        assertEquals(List.of("a"), storageService.loadVault("nulls").keys.names());
+    }
+
+    @Test
+    void testKeyGenerationsRoundTrip() throws Exception {
+        for (StorageService.Format format : StorageService.Format.values()) {
+            StorageService storage = new StorageService(TEST_DIR);
+            storage.setFormat(format);
+            storage.setLogStructured(true);
+            String username = "rotating" + format;
+
+            List<VaultEntry> keys = new ArrayList<>();
+            keys.add(new VaultEntry("old", new EncryptedData(new byte[12], new byte[20]).withKeyGeneration(3)));
+            keys.add(new VaultEntry("new", new EncryptedData(new byte[12], new byte[20]).withKeyGeneration(4)));
+            VaultFile vaultFile = new VaultFile("testSalt", keys);
+            vaultFile.keyGeneration = 3;
+            vaultFile.wrappedKey = new EncryptedData("wrapIv", "wrapCipher");
+            vaultFile.rotationKey = new EncryptedData("nextIv", "nextCipher");
+            storage.saveVault(username, vaultFile);
+
+            VaultEntry rotated = new VaultEntry("old", new EncryptedData(new byte[12], new byte[21]).withKeyGeneration(4));
+            vaultFile.keys.put(rotated);
+            storage.saveChanges(username, vaultFile, List.of(VaultChange.put(rotated)));
+
+            VaultFile loaded = storage.loadVault(username);
+            assertEquals(3, loaded.keyGeneration);
+            assertEquals("nextCipher", loaded.rotationKey.getCiphertext());
+            assertEquals(4, loaded.keys.get("old").encryptedKey.getKeyGeneration());
+            assertEquals(4, loaded.keys.get("new").encryptedKey.getKeyGeneration());
+
+            MappedVault mapped = storage.mapVault(username);
+            assertEquals(4, mapped.get("old").getKeyGeneration());
+            assertEquals(4, mapped.get("new").getKeyGeneration());
+
+            VaultHeader header = storage.readVaultHeader(username);
+            assertEquals(3, header.getKeyGeneration());
+            assertEquals("nextIv", header.getRotationKey().getIv());
+
+            storage.compact(username);
+            assertEquals(4, storage.mapVault(username).get("old").getKeyGeneration());
+        }
+    }
+
+    @Test
+    void testReserveNoncesGivesDisjointPersistentBlocks() throws Exception {
+        NonceSequence.Block first = storageService.reserveNonces("user", 100);
+        NonceSequence.Block second = new StorageService(TEST_DIR).reserveNonces("user", 50);
+        assertEquals(0, first.start);
+        assertEquals(100, first.end);
+        assertEquals(100, second.start);
+        assertEquals(150, second.end);
+        assertArrayEquals(first.prefix, second.prefix);
+
+        List<Future<NonceSequence.Block>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 32; i++) {
+                StorageService storage = i % 2 == 0 ? storageService : new StorageService(TEST_DIR);
+                futures.add(executor.submit(() -> storage.reserveNonces("user", 10)));
+            }
+            Set<Long> starts = new HashSet<>();
+            for (Future<NonceSequence.Block> future : futures) {
+                NonceSequence.Block block = future.get();
+                assertTrue(block.start >= 150);
+                assertTrue(starts.add(block.start));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(470, storageService.reserveNonces("user", 1).start);
+    }
+
+    @Test
+    void testNonceSequenceSkipsUnusedCountersAfterRestart() throws Exception {
+        NonceSequence nonces = new NonceSequence(count -> storageService.reserveNonces("user", count), 4);
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 6; i++) {
+            assertTrue(seen.add(Base64.getEncoder().encodeToString(nonces.next())));
+        }
+
+        //A new sequence, as after a crash, starts past the last reserved block
+        byte[] nonce = new NonceSequence(count -> storageService.reserveNonces("user", count), 4).next();
+        assertEquals(12, nonce.length);
+        assertEquals(8, ByteBuffer.wrap(nonce, 4, 8).getLong());
+    }
+
+    @Test
+    void testReadVaultHeader() throws Exception {
+        assertNull(storageService.readVaultHeader("nobody"));
+
+        List<VaultEntry> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(new VaultEntry("key" + i, new EncryptedData("iv", "cipher")));
+        }
+        VaultFile vaultFile = new VaultFile("testSalt", "PBKDF2WithHmacSHA256", 300_000, keys);
+        vaultFile.wrappedKey = new EncryptedData("wrapIv", "wrapCipher");
+        storageService.saveVault("binary", vaultFile);
+
+        VaultHeader header = storageService.readVaultHeader("binary");
+        assertEquals(BinaryVaultCodec.FORMAT_VERSION, header.getFormatVersion());
+        assertEquals("testSalt", header.getSalt());
+        assertEquals(300_000, header.getKdfIterations());
+        assertEquals("wrapCipher", header.getWrappedKey().getCiphertext());
+        assertEquals(20, header.getEntryCount());
+
+        StorageService jsonStorage = new StorageService(TEST_DIR);
+        jsonStorage.setFormat(StorageService.Format.JSON);
+        jsonStorage.saveVault("json", vaultFile);
+        header = jsonStorage.readVaultHeader("json");
+        assertEquals(VaultHeader.JSON_FORMAT_VERSION, header.getFormatVersion());
+        assertEquals("wrapIv", header.getWrappedKey().getIv());
+        assertEquals(-1, header.getEntryCount());
+
+        Files.writeString(Paths.get(TEST_DIR, "legacy.json"),
+            "{\"keys\": [{\"name\": \"a\"}, {\"name\": \"b\"}], \"salt\": \"late\"}");
+        header = jsonStorage.readVaultHeader("legacy");
+        assertEquals("late", header.getSalt());
+        assertNull(header.getWrappedKey());
+        assertEquals(VaultFile.LEGACY_KDF_ITERATIONS, header.getKdfIterations());
+        assertEquals(2, header.getEntryCount());
+
+        //A header too long for the first read is read again in full
+        storageService.saveVault("longSalt", new VaultFile("x".repeat(5000), keys));
+        assertEquals("x".repeat(5000), storageService.readVaultHeader("longSalt").getSalt());
+    }
+
+    @Test
+    void testReadVersionOneBinaryVault() throws Exception {
+        //Version 1 headers have no wrapped key fields
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BinaryVaultCodec.MAGIC);
+        out.writeByte(1);
+        out.writeByte(1); //salt as text
+        out.writeInt(8);
+        out.writeBytes("testSalt");
+        out.writeShort(20);
+        out.writeBytes("PBKDF2WithHmacSHA256");
+        out.writeInt(100_000);
+        out.writeInt(1);
+        out.writeShort(3);
+        out.writeBytes("key");
+        out.writeByte(1);
+        out.writeInt(2);
+        out.writeBytes("iv");
+        out.writeByte(1);
+        out.writeInt(6);
+        out.writeBytes("cipher");
+        Files.write(Paths.get(TEST_DIR, "old.vault"), bytes.toByteArray());
+
+        VaultFile vaultFile = storageService.loadVault("old");
+        assertEquals("testSalt", vaultFile.salt);
+        assertNull(vaultFile.wrappedKey);
+        assertEquals("cipher", vaultFile.keys.get("key").encryptedKey.getCiphertext());
+        assertEquals("iv", storageService.mapVault("old").get("key").getIv());
+    }
+
+    @Test
+    void testBinaryVaultIsReadInJsonMode() throws Exception {
+        String username = "testUser";
+        List<VaultEntry> keys = new ArrayList<>();
+        keys.add(new VaultEntry("first", new EncryptedData("not base64!", "cipher1")));
+        storageService.saveVault(username, new VaultFile("testSalt", keys));
+
+        StorageService jsonStorage = new StorageService(TEST_DIR);
+        jsonStorage.setFormat(StorageService.Format.JSON);
+        VaultFile loadedVault = jsonStorage.loadVault(username);
+
+        assertEquals("testSalt", loadedVault.salt);
+        assertEquals("not base64!", loadedVault.keys.get("first").encryptedKey.getIv());
+        assertTrue(Files.exists(Paths.get(TEST_DIR, username + ".json")));
+        assertFalse(Files.exists(Paths.get(TEST_DIR, username + ".vault")));
+    }
+
+    @Test
+    void testMapVaultDecodesEntriesOnDemand() throws Exception {
+        String username = "testUser";
+        storageService.setLogStructured(true);
+        String salt = Base64.getEncoder().encodeToString(new byte[16]);
+
+        //Large enough to be memory-mapped rather than read into the heap
+        List<VaultEntry> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            byte[] ciphertext = new byte[64];
+            ciphertext[0] = (byte) i;
+            keys.add(new VaultEntry("key" + i, new EncryptedData(
+                Base64.getEncoder().encodeToString(new byte[12]),
+                Base64.getEncoder().encodeToString(ciphertext))));
+        }
+        VaultFile vaultFile = new VaultFile(salt, keys);
+        storageService.saveVault(username, vaultFile);
+
+        VaultEntry added = new VaultEntry("added", new EncryptedData("iv", "cipher"));
+        vaultFile.keys.add(added);
+        vaultFile.keys.remove("key0");
+        storageService.saveChanges(username, vaultFile,
+            List.of(VaultChange.put(added), VaultChange.delete("key0")));
+
+        MappedVault mappedVault = storageService.mapVault(username);
+        assertEquals(salt, mappedVault.getSalt());
+        assertEquals(2000, mappedVault.size());
+        assertEquals(vaultFile.keys.names(), mappedVault.names());
+        assertEquals(keys.get(1500).encryptedKey.getCiphertext(), mappedVault.get("key1500").getCiphertext());
+        assertEquals("cipher", mappedVault.get("added").getCiphertext());
+        assertNull(mappedVault.get("key0"));
+        assertNull(mappedVault.get("missing"));
+    }
+
+    @Test
+    void testMapVaultReadsJsonVaults() throws Exception {
+        String username = "testUser";
+        storageService.setFormat(StorageService.Format.JSON);
+        List<VaultEntry> keys = new ArrayList<>();
+        keys.add(new VaultEntry("first", new EncryptedData("iv1", "cipher1")));
+        storageService.saveVault(username, new VaultFile("testSalt", keys));
+
+        MappedVault mappedVault = storageService.mapVault(username);
+        assertEquals("testSalt", mappedVault.getSalt());
+        assertEquals(List.of("first"), mappedVault.names());
+        assertEquals("cipher1", mappedVault.get("first").getCiphertext());
+        assertNull(storageService.mapVault("otherUser"));
+    }
+
+    @Test
+    void testStreamedJsonMatchesReflectiveGsonOutput() throws Exception {
+        String username = "testUser";
+        storageService.setFormat(StorageService.Format.JSON);
+        List<VaultEntry> keys = new ArrayList<>();
+        keys.add(new VaultEntry("first", new EncryptedData("iv1", "cipher1")));
+        keys.add(new VaultEntry("second \"quoted\"", new EncryptedData("iv2", "cipher2")));
+        VaultFile vaultFile = new VaultFile("testSalt", keys);
+        storageService.saveVault(username, vaultFile);
+
+        String reflective = new GsonBuilder().setPrettyPrinting().create().toJson(vaultFile);
+        assertEquals(reflective, Files.readString(Paths.get(TEST_DIR, username + ".json")));
+    }
+
+    @Test
+    void testCompactJsonRoundTrips() throws Exception {
+        String username = "testUser";
+        storageService.setFormat(StorageService.Format.JSON);
+        storageService.setPrettyPrint(false);
+        List<VaultEntry> keys = new ArrayList<>();
+        keys.add(new VaultEntry("first", new EncryptedData("iv1", "cipher1")));
+        storageService.saveVault(username, new VaultFile("testSalt", keys));
+
+        String json = Files.readString(Paths.get(TEST_DIR, username + ".json"));
+        assertFalse(json.contains("\n"));
+
+        VaultFile loadedVault = storageService.loadVault(username);
+        assertEquals("testSalt", loadedVault.salt);
+        assertEquals("cipher1", loadedVault.keys.get("first").encryptedKey.getCiphertext());
+    }
 }